@@ -0,0 +1,331 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Waiting patients by arrival number, in a 32-way radix trie whose nodes
+ * are shared with the snapshots taken of it (epoch-based copy-on-write).
+ *
+ * Every node remembers the epoch it was created in, and nodes of the
+ * current epoch are changed in place. Taking a snapshot costs O(1): it
+ * keeps the current root and starts a new epoch, so from then on a change
+ * first copies the nodes on its path, at most seven arrays of 32 slots.
+ * A snapshot therefore never changes, and the owner only pays for copying
+ * the paths it changes after one was taken.
+ *
+ * As a list, the trie holds the patients in increasing arrival number.
+ * Each node counts the patients below it, so size() is O(1), get(index)
+ * is O(log n) and iterating skips the subtrees nobody is waiting in.
+ * Only the thread that owns the trie may change it.
+ * @author Ruifeng Wang
+ */
+final class ArrivalTrie extends AbstractList<Patient> {
+    private static final int BITS = 5;              // key bits per level
+    private static final int WIDTH = 1 << BITS;     // slots per node
+    private static final int MASK = WIDTH - 1;
+
+    private Node root;      // null when empty
+    private int shift;      // key bits below the root's slots
+    private long epoch;     // nodes of this epoch may be changed in place,
+                            // -1 for a snapshot, which cannot be changed
+
+    /**
+     * Creates an empty trie
+     */
+    ArrivalTrie() {
+    }
+
+    /**
+     * Creates a snapshot sharing another trie's nodes
+     * @param root		Root of the trie
+     * @param shift		Key bits below the root's slots
+     */
+    private ArrivalTrie(Node root, int shift) {
+        this.root = root;
+        this.shift = shift;
+        this.epoch = -1;
+    }
+
+    /**
+     * Finds number of patients in the trie
+     * @return		Number of patients
+     */
+    @Override
+    public int size() {
+        return root == null ? 0 : root.count;
+    }
+
+    /**
+     * Gets the patient with the given rank in arrival order
+     * @param index		Rank, 0 for the earliest arrival
+     * @return			Patient
+     */
+    @Override
+    public Patient get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for length " + size());
+        }
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            int slot = 0;
+            Node child = (Node) node.slots[0];
+            while (child == null || index >= child.count) {
+                index -= child == null ? 0 : child.count;
+                child = (Node) node.slots[++slot];
+            }
+            node = child;
+        }
+        int slot = 0;
+        while (node.slots[slot] == null || index-- > 0) {
+            slot++;
+        }
+        return (Patient) node.slots[slot];
+    }
+
+    /**
+     * Walks the patients in increasing arrival number
+     * @return		Iterator over the patients
+     */
+    @Override
+    public Iterator<Patient> iterator() {
+        return new Walk(root, shift);
+    }
+
+    /**
+     * Adds a patient, or replaces the patient with the same arrival number
+     * @param patient		Patient to store under its arrival number
+     */
+    void put(Patient patient) {
+        checkOwner();
+        int key = patient.getArrivalOrder();
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative arrival number "
+                    + key);
+        }
+        while ((key >>> shift) > MASK) {
+            if (root != null) {
+                Node up = new Node(epoch);
+                up.slots[0] = root;
+                up.count = root.count;
+                root = up;
+            }
+            shift += BITS;
+        }
+        root = put(root, shift, key, patient);
+    }
+
+    /**
+     * Removes the patient with an arrival number, if there is one
+     * @param key		Arrival number
+     */
+    void delete(int key) {
+        checkOwner();
+        if (key >= 0 && (key >>> shift) <= MASK) {
+            root = delete(root, shift, key);
+            if (root == null) {
+                shift = 0;
+            }
+        }
+    }
+
+    /**
+     * Removes every patient
+     */
+    @Override
+    public void clear() {
+        checkOwner();
+        root = null;
+        shift = 0;
+    }
+
+    /**
+     * Takes an immutable snapshot of the trie in O(1). Later changes to
+     * this trie copy the nodes they touch, so they never reach the
+     * snapshot.
+     * @return		Snapshot, which cannot be changed
+     */
+    ArrivalTrie snapshot() {
+        checkOwner();
+        ArrivalTrie frozen = new ArrivalTrie(root, shift);
+        epoch++;
+        return frozen;
+    }
+
+    /**
+     * Stores a patient below a node, copying the node first if it belongs
+     * to an earlier epoch
+     * @param node		Node, null to create it
+     * @param level		Key bits below the node's slots
+     * @param key		Arrival number
+     * @param patient	Patient to store
+     * @return			Node to store in place of the old one
+     */
+    private Node put(Node node, int level, int key, Patient patient) {
+        node = node == null ? new Node(epoch) : editable(node);
+        int slot = (key >>> level) & MASK;
+        if (level == 0) {
+            if (node.slots[slot] == null) {
+                node.count++;
+            }
+            node.slots[slot] = patient;
+        } else {
+            Node child = (Node) node.slots[slot];
+            int before = child == null ? 0 : child.count;
+            child = put(child, level - BITS, key, patient);
+            node.slots[slot] = child;
+            node.count += child.count - before;
+        }
+        return node;
+    }
+
+    /**
+     * Removes a patient below a node, copying the nodes that change if
+     * they belong to an earlier epoch
+     * @param node		Node, or null
+     * @param level		Key bits below the node's slots
+     * @param key		Arrival number
+     * @return			Node to store in place of the old one, null once
+     *					nobody below it is waiting
+     */
+    private Node delete(Node node, int level, int key) {
+        int slot = (key >>> level) & MASK;
+        if (node == null || node.slots[slot] == null) {
+            return node;
+        }
+        if (level == 0) {
+            node = editable(node);
+            node.slots[slot] = null;
+        } else {
+            Node child = (Node) node.slots[slot];
+            int before = child.count;
+            Node updated = delete(child, level - BITS, key);
+            if (updated != null && updated.count == before) {
+                return node;
+            }
+            node = editable(node);
+            node.slots[slot] = updated;
+        }
+        node.count--;
+        return node.count == 0 ? null : node;
+    }
+
+    /**
+     * Gets a node that may be changed in place, copying it if it belongs
+     * to an earlier epoch and may therefore be shared with a snapshot
+     * @param node		Node to change
+     * @return			The node itself or its copy
+     */
+    private Node editable(Node node) {
+        return node.epoch == epoch ? node : new Node(node, epoch);
+    }
+
+    /**
+     * Refuses to change a snapshot
+     */
+    private void checkOwner() {
+        if (epoch < 0) {
+            throw new UnsupportedOperationException(
+                    "A snapshot cannot be changed");
+        }
+    }
+
+    /**
+     * Node of the trie. Slots hold child nodes, or patients in the leaves.
+     */
+    private static final class Node {
+        private final Object[] slots;   // children or patients
+        private final long epoch;       // epoch the node was created in
+        private int count;              // patients below the node
+
+        /**
+         * Creates an empty node
+         * @param epoch		Current epoch
+         */
+        Node(long epoch) {
+            this.slots = new Object[WIDTH];
+            this.epoch = epoch;
+        }
+
+        /**
+         * Copies a node into the current epoch
+         * @param other		Node to copy
+         * @param epoch		Current epoch
+         */
+        Node(Node other, long epoch) {
+            this.slots = other.slots.clone();
+            this.epoch = epoch;
+            this.count = other.count;
+        }
+    }
+
+    /**
+     * Depth-first walk over the leaves, in increasing arrival number.
+     */
+    private static final class Walk implements Iterator<Patient> {
+        private Node[] nodes;       // path from the root to the current node
+        private int[] slots;        // last slot visited on each level
+        private int depth;          // level of the current node, -1 at end
+        private Patient next;       // patient to return next, null at end
+
+        /**
+         * Starts a walk before the first patient
+         * @param root		Root of the trie, or null
+         * @param shift		Key bits below the root's slots
+         */
+        Walk(Node root, int shift) {
+            this.nodes = new Node[shift / BITS + 1];
+            this.slots = new int[nodes.length];
+            this.nodes[0] = root;
+            this.slots[0] = -1;
+            this.depth = root == null ? -1 : 0;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Patient next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Patient current = next;
+            advance();
+            return current;
+        }
+
+        /**
+         * Moves to the next patient, if there is one
+         */
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                int slot = ++slots[depth];
+                if (slot == WIDTH) {
+                    depth--;
+                    continue;
+                }
+                Object item = nodes[depth].slots[slot];
+                if (item == null) {
+                    continue;
+                }
+                if (depth == nodes.length - 1) {
+                    next = (Patient) item;
+                    return;
+                }
+                depth++;
+                nodes[depth] = (Node) item;
+                slots[depth] = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+/**
+ * Hospital triage system implemented as one ring buffer per priority code.
+ * Adding, peeking and dequeuing are O(1) and patients at the same priority
+ * are always seen in arrival order.
+ *
+ * A priority change leaves the patient's old entry behind in its ring, to
+ * be skipped when it reaches the front. Each ring counts its stale entries
+ * and drops them all in one pass once they are more than half of it, so
+ * the rings never hold more than about twice the patients waiting.
+ * @author Ruifeng Wang
+ */
+public class BucketPatientQueue implements TriageQueue {
+    private static final int LEVELS = 4;        // immediate .. minimal
+
+    private PatientRing[] levels;               // one FIFO per priority code
+    private HashMap<Integer, Patient> waiting;  // arrival num -> live entry
+    private int nextPatientNumber;              // num assigned to next patient
+
+    /**
+     * Creates an empty triage system with no patients.
+     */
+    public BucketPatientQueue() {
+        this.levels = new PatientRing[LEVELS];
+        for (int i = 0; i < LEVELS; i++) {
+            levels[i] = new PatientRing();
+        }
+        this.waiting = new HashMap<Integer, Patient>();
+        this.nextPatientNumber = 1;
+    }
+
+    @Override
+    public void addPatient(int priorityCode, String patientName) {
+        PatientRing level = levelFor(priorityCode);
+        Patient patient = new Patient(priorityCode, nextPatientNumber++,
+                patientName);
+        level.addLast(patient);
+        waiting.put(patient.getArrivalOrder(), patient);
+    }
+
+    @Override
+    public Patient peek() {
+        for (int i = 0; i < LEVELS; i++) {
+            Patient head = liveHead(levels[i]);
+            if (head != null) {
+                return head;
+            }
+        }
+        throw new NoSuchElementException("No patients are waiting");
+    }
+
+    @Override
+    public Patient dequeue() {
+        for (int i = 0; i < LEVELS; i++) {
+            Patient head = liveHead(levels[i]);
+            if (head != null) {
+                levels[i].pollFirst();
+                waiting.remove(head.getArrivalOrder());
+                return head;
+            }
+        }
+        throw new NoSuchElementException("No patients are waiting");
+    }
+
+    @Override
+    public int size() {
+        return waiting.size();
+    }
+
+    /**
+     * Changes priority of the patient with the given arrival number. The
+     * patient keeps their arrival position within the new priority code, so
+     * the patients of that code who arrived later are shifted back: O(1)
+     * for the newest arrival, O(k) at worst for k patients at that code.
+     * The old entry is left behind, and reclaimed in amortized O(1).
+     * @param arrivalOrder		Arrival number of the patient to change
+     * @param priorityCode		Priority to change to
+     * @return					True if patient was found, false otherwise
+     */
+    @Override
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+        PatientRing level = levelFor(priorityCode);
+        Patient current = waiting.get(arrivalOrder);
+        if (current == null) {
+            return false;
+        }
+        if (current.getPriorityCode() == priorityCode) {
+            return true;
+        }
+        Patient copy = new Patient(priorityCode, arrivalOrder,
+                current.getName());
+        waiting.put(arrivalOrder, copy);
+        level.insertByArrival(copy);
+        PatientRing old = levelFor(current.getPriorityCode());
+        old.stale++;
+        if (old.stale > old.size() / 2) {
+            compact(old);
+        }
+        return true;
+    }
+
+    /**
+     * Finds number of entries held by the rings, stale ones included
+     * @return		Number of ring entries
+     */
+    int getEntryCount() {
+        int entries = 0;
+        for (int i = 0; i < LEVELS; i++) {
+            entries += levels[i].size();
+        }
+        return entries;
+    }
+
+    /**
+     * Gets the patients currently waiting, in the order they will be called
+     * @return the list of patients that have not been called
+     */
+    @Override
+    public ArrayList<Patient> getPatientList() {
+        ArrayList<Patient> list = new ArrayList<Patient>(size());
+        for (int i = 0; i < LEVELS; i++) {
+            PatientRing level = levels[i];
+            for (int j = 0; j < level.size(); j++) {
+                if (isLive(level.get(j))) {
+                    list.add(level.get(j));
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Finds the ring buffer holding a priority code
+     * @param priorityCode		Priority code, 1 (immediate) to 4 (minimal)
+     * @return					Ring buffer for that priority code
+     */
+    private PatientRing levelFor(int priorityCode) {
+        if (priorityCode < 1 || priorityCode > LEVELS) {
+            throw new IllegalArgumentException("Unknown priority code: "
+                    + priorityCode);
+        }
+        return levels[priorityCode - 1];
+    }
+
+    /**
+     * Drops entries left behind by priority changes from the front of a ring
+     * @param level		Ring buffer to inspect
+     * @return			First live patient in the ring, null if none
+     */
+    private Patient liveHead(PatientRing level) {
+        while (level.size() > 0 && !isLive(level.peekFirst())) {
+            level.pollFirst();
+            level.stale--;
+        }
+        return level.size() > 0 ? level.peekFirst() : null;
+    }
+
+    /**
+     * Drops every entry left behind by priority changes from a ring
+     * @param level		Ring buffer to compact
+     */
+    private void compact(PatientRing level) {
+        int live = 0;
+        for (int i = 0; i < level.size(); i++) {
+            Patient patient = level.get(i);
+            if (isLive(patient)) {
+                level.set(live++, patient);
+            }
+        }
+        level.truncate(live);
+        level.stale = 0;
+    }
+
+    /**
+     * Checks whether a ring entry is still the patient's current record
+     * @param patient		Entry taken from a ring buffer
+     * @return				True if the entry has not been superseded
+     */
+    private boolean isLive(Patient patient) {
+        return waiting.get(patient.getArrivalOrder()) == patient;
+    }
+
+    /**
+     * Growable circular array of patients.
+     */
+    private static class PatientRing {
+        private Patient[] items;    // circular storage, capacity power of 2
+        private int head;           // index of the first patient
+        private int count;          // number of patients stored
+        private int stale;          // entries superseded by a change
+
+        /**
+         * Creates an empty ring buffer.
+         */
+        PatientRing() {
+            this.items = new Patient[16];
+        }
+
+        /**
+         * Number of entries in the ring
+         * @return		Number of entries
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Gets the entry at a position counted from the front
+         * @param i		Position from the front
+         * @return		Entry at that position
+         */
+        Patient get(int i) {
+            return items[(head + i) & (items.length - 1)];
+        }
+
+        /**
+         * Replaces the entry at a position counted from the front
+         * @param i			Position from the front
+         * @param patient	Entry to store
+         */
+        void set(int i, Patient patient) {
+            items[(head + i) & (items.length - 1)] = patient;
+        }
+
+        /**
+         * Drops the entries from a position to the back
+         * @param size		Number of entries to keep
+         */
+        void truncate(int size) {
+            for (int i = size; i < count; i++) {
+                set(i, null);
+            }
+            count = size;
+        }
+
+        /**
+         * Views the entry at the front
+         * @return		Entry at the front
+         */
+        Patient peekFirst() {
+            return items[head];
+        }
+
+        /**
+         * Removes the entry at the front
+         * @return		Entry that was at the front
+         */
+        Patient pollFirst() {
+            Patient first = items[head];
+            items[head] = null;
+            head = (head + 1) & (items.length - 1);
+            count--;
+            return first;
+        }
+
+        /**
+         * Appends an entry at the back
+         * @param patient		Entry to append
+         */
+        void addLast(Patient patient) {
+            if (count == items.length) {
+                grow();
+            }
+            items[(head + count) & (items.length - 1)] = patient;
+            count++;
+        }
+
+        /**
+         * Inserts an entry behind every entry that arrived before it. Only
+         * later arrivals are shifted, so this is O(1) for the newest patient.
+         * @param patient		Entry to insert
+         */
+        void insertByArrival(Patient patient) {
+            if (count == items.length) {
+                grow();
+            }
+            int mask = items.length - 1;
+            int i = count;
+            while (i > 0 && items[(head + i - 1) & mask].getArrivalOrder()
+                    > patient.getArrivalOrder()) {
+                items[(head + i) & mask] = items[(head + i - 1) & mask];
+                i--;
+            }
+            items[(head + i) & mask] = patient;
+            count++;
+        }
+
+        /**
+         * Doubles the capacity, unwrapping the entries to start at index 0
+         */
+        private void grow() {
+            Patient[] bigger = new Patient[items.length * 2];
+            for (int i = 0; i < count; i++) {
+                bigger[i] = get(i);
+            }
+            items = bigger;
+            head = 0;
+        }
+    }
+}
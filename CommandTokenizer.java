@@ -0,0 +1,182 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+/**
+ * Reusable whitespace tokenizer for console commands. It walks a
+ * CharSequence in place and compares tokens against lookup tables without
+ * creating Strings, so parsing a command allocates only the values that
+ * are kept, such as a patient's name.
+ * @author Ruifeng Wang
+ */
+public class CommandTokenizer {
+    private CharSequence line;      // line being tokenized
+    private int pos;                // first char not yet consumed
+    private int start;              // start of the current token
+    private int end;                // end (exclusive) of the current token
+    private StringBuilder joined;   // reused by rest()
+
+    /**
+     * Creates a tokenizer with no line.
+     */
+    public CommandTokenizer() {
+        this.joined = new StringBuilder();
+        reset("");
+    }
+
+    /**
+     * Starts tokenizing a new line
+     * @param line		Line to tokenize
+     */
+    public void reset(CharSequence line) {
+        this.line = line;
+        this.pos = 0;
+        this.start = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Checks if another token follows the current one
+     * @return		True if there is another token
+     */
+    public boolean hasNext() {
+        return skipWhitespace(pos) < line.length();
+    }
+
+    /**
+     * Advances to the next token
+     * @return		True if there was a next token, false at end of line
+     */
+    public boolean next() {
+        start = skipWhitespace(pos);
+        end = start;
+        while (end < line.length() && !isWhitespace(line.charAt(end))) {
+            end++;
+        }
+        pos = end;
+        return start < end;
+    }
+
+    /**
+     * Finds the current token in a table of words
+     * @param table		Words to compare against
+     * @return			Index of the matching word, -1 if none matches
+     */
+    public int lookup(String[] table) {
+        for (int i = 0; i < table.length; i++) {
+            if (tokenEquals(table[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the current token with a word
+     * @param word		Word to compare against
+     * @return			True if the token is exactly that word
+     */
+    public boolean tokenEquals(String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (line.charAt(start + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the current token is an int, with an optional sign
+     * @return		True if tokenInt() can parse the token
+     */
+    public boolean isTokenInt() {
+        int i = start;
+        if (i < end && (line.charAt(i) == '-' || line.charAt(i) == '+')) {
+            i++;
+        }
+        if (i == end || end - i > 10) {
+            return false;
+        }
+        for (int j = i; j < end; j++) {
+            if (line.charAt(j) < '0' || line.charAt(j) > '9') {
+                return false;
+            }
+        }
+        long value = parseLong();
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Parses the current token as an int. Call isTokenInt() first.
+     * @return		Value of the token
+     */
+    public int tokenInt() {
+        return (int) parseLong();
+    }
+
+    /**
+     * Copies the current token into a String
+     * @return		Current token
+     */
+    public String token() {
+        return line.subSequence(start, end).toString();
+    }
+
+    /**
+     * Consumes the rest of the line, joining its tokens with single spaces
+     * @return		Remaining tokens, empty if there are none
+     */
+    public String rest() {
+        joined.setLength(0);
+        while (next()) {
+            if (joined.length() > 0) {
+                joined.append(' ');
+            }
+            joined.append(line, start, end);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Parses the digits of the current token
+     * @return		Value of the token
+     */
+    private long parseLong() {
+        int i = start;
+        boolean negative = line.charAt(i) == '-';
+        if (negative || line.charAt(i) == '+') {
+            i++;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Finds the first non-whitespace char at or after an index
+     * @param from		Index to start at
+     * @return			Index of that char, or the line length
+     */
+    private int skipWhitespace(int from) {
+        while (from < line.length() && isWhitespace(line.charAt(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Checks if a char separates tokens
+     * @param c		Char to check
+     * @return		True for spaces, tabs and line breaks
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f';
+    }
+}
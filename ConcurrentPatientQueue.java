@@ -0,0 +1,194 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hospital triage system that can be shared by several intake desks and
+ * physician stations. Each priority code has its own lock-free skip list
+ * keyed by arrival number, so desks adding at different levels never
+ * contend with each other, and patients at the same priority are called in
+ * arrival order even after a priority change. Adding, peeking and
+ * dequeuing are O(log k) for k patients at the level.
+ *
+ * A patient's current record lives in a concurrent map; claiming a patient
+ * means removing exactly that record from the map, so two stations can never
+ * call the same patient. Changing a priority swaps the record, files it under
+ * its arrival number in the new level and then removes the old entry. An
+ * entry left behind by a race between two changes is dropped by the first
+ * peek or dequeue that reaches it.
+ * @author Ruifeng Wang
+ */
+public class ConcurrentPatientQueue implements TriageQueue {
+    private static final int LEVELS = 4;            // immediate .. minimal
+
+    private ConcurrentSkipListMap<Integer, Patient>[] levels; // per priority,
+                                                    // by arrival number
+    private ConcurrentHashMap<Integer, Patient> waiting; // arrival -> record
+    private AtomicInteger nextPatientNumber;        // num for next patient
+    private Semaphore available;                    // one permit per patient
+
+    /**
+     * Creates an empty triage system with no patients.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ConcurrentPatientQueue() {
+        this.levels = new ConcurrentSkipListMap[LEVELS];
+        for (int i = 0; i < LEVELS; i++) {
+            levels[i] = new ConcurrentSkipListMap<Integer, Patient>();
+        }
+        this.waiting = new ConcurrentHashMap<Integer, Patient>();
+        this.nextPatientNumber = new AtomicInteger(1);
+        this.available = new Semaphore(0);
+    }
+
+    @Override
+    public void addPatient(int priorityCode, String patientName) {
+        ConcurrentSkipListMap<Integer, Patient> level = levelFor(priorityCode);
+        Patient patient = new Patient(priorityCode,
+                nextPatientNumber.getAndIncrement(), patientName);
+        waiting.put(patient.getArrivalOrder(), patient);
+        level.put(patient.getArrivalOrder(), patient);
+        available.release();
+    }
+
+    /**
+     * Views (but does not remove) patient at the top of the priority queue.
+     * Other threads may call that patient before the caller acts on it.
+     * @return		Patient at top of priority queue
+     */
+    @Override
+    public Patient peek() {
+        for (int i = 0; i < LEVELS; i++) {
+            for (Patient patient : levels[i].values()) {
+                if (waiting.get(patient.getArrivalOrder()) == patient) {
+                    return patient;
+                }
+                // superseded records never become current again
+                levels[i].remove(patient.getArrivalOrder(), patient);
+            }
+        }
+        throw new NoSuchElementException("No patients are waiting");
+    }
+
+    @Override
+    public Patient dequeue() {
+        if (!available.tryAcquire()) {
+            throw new NoSuchElementException("No patients are waiting");
+        }
+        return claimNext();
+    }
+
+    /**
+     * Removes the patient at the top of the priority queue, waiting for one
+     * to arrive if the waiting room is empty.
+     * @param timeout		How long to wait for a patient
+     * @param unit			Unit of the timeout
+     * @return				Patient at top of priority queue, null if none
+     *						arrived before the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Patient takeNext(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!available.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return claimNext();
+    }
+
+    @Override
+    public int size() {
+        return waiting.size();
+    }
+
+    /**
+     * Changes priority of the patient with the given arrival number. The
+     * patient keeps their arrival position within the new priority level.
+     * @param arrivalOrder		Arrival number of the patient to change
+     * @param priorityCode		Priority to change to
+     * @return					True if patient was found, false otherwise
+     */
+    @Override
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+        ConcurrentSkipListMap<Integer, Patient> level = levelFor(priorityCode);
+        while (true) {
+            Patient current = waiting.get(arrivalOrder);
+            if (current == null) {
+                return false;
+            }
+            Patient copy = new Patient(priorityCode, arrivalOrder,
+                    current.getName());
+            // publish the new record before filing it, otherwise a station
+            // could poll the copy and discard it as superseded
+            if (waiting.replace(arrivalOrder, current, copy)) {
+                level.put(arrivalOrder, copy);
+                levelFor(current.getPriorityCode()).remove(arrivalOrder,
+                        current);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets a weakly consistent list of the patients currently waiting, in
+     * the order they will be called
+     * @return the list of patients that have not been called
+     */
+    @Override
+    public ArrayList<Patient> getPatientList() {
+        ArrayList<Patient> list = new ArrayList<Patient>(size());
+        for (int i = 0; i < LEVELS; i++) {
+            for (Patient patient : levels[i].values()) {
+                if (waiting.get(patient.getArrivalOrder()) == patient) {
+                    list.add(patient);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Claims the highest priority patient. The caller must already hold a
+     * permit, which guarantees that a live patient exists or is about to be
+     * queued by a concurrent priority change.
+     * @return		Claimed patient
+     */
+    private Patient claimNext() {
+        while (true) {
+            for (int i = 0; i < LEVELS; i++) {
+                Map.Entry<Integer, Patient> entry = levels[i].pollFirstEntry();
+                while (entry != null) {
+                    if (waiting.remove(entry.getKey(), entry.getValue())) {
+                        return entry.getValue();
+                    }
+                    entry = levels[i].pollFirstEntry();   // superseded entry
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Finds the skip list holding a priority code
+     * @param priorityCode		Priority code, 1 (immediate) to 4 (minimal)
+     * @return					Skip list for that priority code
+     */
+    private ConcurrentSkipListMap<Integer, Patient> levelFor(
+            int priorityCode) {
+        if (priorityCode < 1 || priorityCode > LEVELS) {
+            throw new IllegalArgumentException("Unknown priority code: "
+                    + priorityCode);
+        }
+        return levels[priorityCode - 1];
+    }
+}
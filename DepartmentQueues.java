@@ -0,0 +1,263 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Several triage areas (e.g. adult, paediatric, fast-track), each with its
+ * own PatientPriorityQueue and its own lock, so desks and clinicians in
+ * different departments never contend with each other.
+ *
+ * Patients are added to their department's shard. A clinician calls from
+ * the local shard first; when it is empty, the best waiting patient across
+ * the other shards is stolen instead. Arrival numbers are handed out from
+ * one counter, so they are unique and comparable across departments.
+ *
+ * At most one shard lock is held at a time, so there is no lock ordering
+ * to get wrong.
+ * @author Ruifeng Wang
+ */
+public class DepartmentQueues {
+    private String[] departments;           // names, index is the shard
+    private PatientPriorityQueue[] shards;  // one heap per department
+    private ReentrantLock[] locks;          // guards the shard at same index
+    private AtomicInteger nextPatientNumber; // shared by every department
+
+    /**
+     * Creates a manager with an empty queue for each department
+     * @param departments		Department names, at least one
+     */
+    public DepartmentQueues(String... departments) {
+        if (departments.length == 0) {
+            throw new IllegalArgumentException("No departments given");
+        }
+        this.departments = Arrays.copyOf(departments, departments.length);
+        this.shards = new PatientPriorityQueue[departments.length];
+        this.locks = new ReentrantLock[departments.length];
+        for (int i = 0; i < departments.length; i++) {
+            shards[i] = new PatientPriorityQueue();
+            locks[i] = new ReentrantLock();
+        }
+        this.nextPatientNumber = new AtomicInteger(1);
+    }
+
+    /**
+     * Gets the names of the departments
+     * @return		Department names, in shard order
+     */
+    public String[] getDepartments() {
+        return Arrays.copyOf(departments, departments.length);
+    }
+
+    /**
+     * Adds a patient to a department's queue
+     * @param department		Department the patient is triaged to
+     * @param priorityCode		Patient's priority code
+     * @param patientName		Patient's name
+     * @return					Arrival number given to the patient
+     */
+    public int addPatient(String department, int priorityCode,
+            String patientName) {
+        int shard = shardOf(department);
+        locks[shard].lock();
+        try {
+            // numbered under the lock so each shard stays in arrival order
+            int arrivalOrder = nextPatientNumber.getAndIncrement();
+            shards[shard].restorePatient(priorityCode, arrivalOrder,
+                    patientName);
+            return arrivalOrder;
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Views (but does not remove) the patient a clinician of the department
+     * would be given next. Other clinicians may call that patient first.
+     * @param department		Department of the clinician
+     * @return					Next patient, or null if nobody is waiting
+     */
+    public Patient peek(String department) {
+        int shard = shardOf(department);
+        Patient local = peekShard(shard);
+        return local != null ? local : bestElsewhere(shard).patient;
+    }
+
+    /**
+     * Calls the next patient for a clinician of the department: the top of
+     * the local queue, or the best patient of any other department when
+     * the local queue is empty
+     * @param department		Department of the clinician
+     * @return					Patient to be seen
+     * @throws NoSuchElementException if no department has patients waiting
+     */
+    public Patient dequeue(String department) {
+        int shard = shardOf(department);
+        Patient called = pollShard(shard);
+        while (called == null) {
+            Candidate best = bestElsewhere(shard);
+            if (best.patient != null) {
+                // the victim may have been drained since it was peeked; its
+                // new top is still a fair pick, and an empty victim means
+                // rescan
+                called = pollShard(best.shard);
+            }
+            if (called == null) {
+                // patients may have joined the local shard during the scan
+                called = pollShard(shard);
+                if (called == null && best.patient == null) {
+                    throw new NoSuchElementException(
+                            "No patients are waiting");
+                }
+            }
+        }
+        return called;
+    }
+
+    /**
+     * Changes priority of a waiting patient, whatever department they are in
+     * @param arrivalOrder		Arrival number of the patient to change
+     * @param priorityCode		Priority to change to
+     * @return					True if patient was found, false otherwise
+     */
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+        for (int i = 0; i < shards.length; i++) {
+            locks[i].lock();
+            try {
+                if (shards[i].changePriorityById(arrivalOrder,
+                        priorityCode)) {
+                    return true;
+                }
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds number of patients waiting in one department
+     * @param department		Department to count
+     * @return					Number of patients waiting there
+     */
+    public int size(String department) {
+        int shard = shardOf(department);
+        locks[shard].lock();
+        try {
+            return shards[shard].size();
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Finds number of patients waiting in every department. Departments are
+     * counted one after another, so the total is approximate while others
+     * are adding and calling.
+     * @return		Number of patients waiting
+     */
+    public int size() {
+        int total = 0;
+        for (int i = 0; i < departments.length; i++) {
+            total += size(departments[i]);
+        }
+        return total;
+    }
+
+    /**
+     * Gets the patients waiting in one department, in arrival order
+     * @param department		Department to list
+     * @return					Copy of the department's waiting patients
+     */
+    public List<Patient> getPatientList(String department) {
+        int shard = shardOf(department);
+        locks[shard].lock();
+        try {
+            return new ArrayList<Patient>(shards[shard].getArrivalList());
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Finds the shard of a department
+     * @param department		Department name
+     * @return					Index of its shard
+     */
+    private int shardOf(String department) {
+        for (int i = 0; i < departments.length; i++) {
+            if (departments[i].equalsIgnoreCase(department)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown department: "
+                + department);
+    }
+
+    /**
+     * Views the top of one shard under its lock
+     * @param shard		Shard to look at
+     * @return			Its top patient, or null if it is empty
+     */
+    private Patient peekShard(int shard) {
+        locks[shard].lock();
+        try {
+            return shards[shard].size() == 0 ? null : shards[shard].peek();
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Removes the top of one shard under its lock
+     * @param shard		Shard to call from
+     * @return			Its top patient, or null if it is empty
+     */
+    private Patient pollShard(int shard) {
+        locks[shard].lock();
+        try {
+            return shards[shard].size() == 0 ? null : shards[shard].dequeue();
+        } finally {
+            locks[shard].unlock();
+        }
+    }
+
+    /**
+     * Finds the best patient waiting outside one shard, by priority and then
+     * arrival, looking at each other shard in turn
+     * @param home		Shard to skip
+     * @return			Best patient and its shard, patient null if none
+     */
+    private Candidate bestElsewhere(int home) {
+        Candidate best = new Candidate();
+        for (int i = 1; i < shards.length; i++) {
+            int shard = (home + i) % shards.length;
+            Patient top = peekShard(shard);
+            if (top != null && (best.patient == null
+                    || top.getPriorityCode() < best.patient.getPriorityCode()
+                    || (top.getPriorityCode() == best.patient.getPriorityCode()
+                    && top.getArrivalOrder()
+                            < best.patient.getArrivalOrder()))) {
+                best.patient = top;
+                best.shard = shard;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Patient to steal and the shard it waits in
+     */
+    private static class Candidate {
+        private Patient patient;    // null when every shard was empty
+        private int shard;          // shard the patient was seen in
+    }
+}
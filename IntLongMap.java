@@ -0,0 +1,177 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.Arrays;
+
+/**
+ * Map from non-negative int keys, such as arrival numbers, to long values,
+ * stored in two primitive arrays with open addressing and linear probing.
+ *
+ * Nothing is boxed, so put and remove do not allocate except when the
+ * table is resized. The table grows past 3/4 full and shrinks below 1/8
+ * full, so its size follows the number of keys in it rather than the
+ * largest key ever stored. Removal shifts the following entries back
+ * instead of leaving tombstones, so lookups never slow down over time.
+ * Not thread-safe.
+ * @author Ruifeng Wang
+ */
+final class IntLongMap {
+    private static final int FREE = -1;         // key of an empty slot
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;         // FREE where empty
+    private long[] values;      // value of the key in the same slot
+    private int size;           // number of keys stored
+
+    /**
+     * Creates an empty map
+     */
+    IntLongMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Finds number of keys in the map
+     * @return		Number of keys
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finds number of slots in the table
+     * @return		Table capacity, a power of 2
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Gets the value of a key
+     * @param key		Key to look up
+     * @param missing	Value to return if the key is not in the map
+     * @return			Value of the key, or missing
+     */
+    long get(int key, long missing) {
+        int slot = find(key);
+        return keys[slot] == FREE ? missing : values[slot];
+    }
+
+    /**
+     * Stores a value under a key, replacing any value it had
+     * @param key		Non-negative key
+     * @param value		Value to store
+     */
+    void put(int key, long value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            if (size + 1 > keys.length * 3 / 4) {
+                resize(keys.length * 2);
+                slot = find(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Removes a key
+     * @param key		Key to remove
+     * @param missing	Value to return if the key is not in the map
+     * @return			Value the key had, or missing
+     */
+    long remove(int key, long missing) {
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            return missing;
+        }
+        long value = values[slot];
+        int mask = keys.length - 1;
+        // shift back every entry that would otherwise be cut off from its
+        // home slot by the hole
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != FREE;
+                next = (next + 1) & mask) {
+            int home = home(keys[next]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = FREE;
+        size--;
+        if (size < keys.length / 8 && keys.length > MIN_CAPACITY) {
+            resize(keys.length / 2);
+        }
+        return value;
+    }
+
+    /**
+     * Removes every key, shrinking the table back to its initial size
+     */
+    void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Finds the slot holding a key, or the empty slot where it would go
+     * @param key		Key to look up
+     * @return			Slot index
+     */
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int slot = home(key);
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Finds the slot a key hashes to
+     * @param key		Key
+     * @return			Slot index
+     */
+    private int home(int key) {
+        // Fibonacci hashing spreads consecutive arrival numbers
+        return (key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(
+                keys.length));
+    }
+
+    /**
+     * Rehashes every entry into a table of another capacity
+     * @param capacity		New capacity, a power of 2
+     */
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Replaces the table with an empty one
+     * @param capacity		Capacity, a power of 2
+     */
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        values = new long[capacity];
+        size = 0;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test of the triage console. Replays commands from a
+ * WorkloadGenerator through an embedded TriageSystem whose output is
+ * discarded, and reports throughput and latency percentiles per command.
+ *
+ * Without a rate, commands are sent back to back to find the throughput
+ * limit. With a rate, each command has a scheduled start time and its
+ * latency is measured from then, so a stall also counts against the
+ * commands that queued up behind it.
+ *
+ * Usage: java rwang_P2X.LoadTestHarness [commands] [waiting] [seed]
+ *        [commandsPerSecond]
+ * @author Ruifeng Wang
+ */
+public class LoadTestHarness {
+    private static final int WARMUP_COMMANDS = 200000;
+    private static final int BATCH = 65536;
+    private static final long SPIN_NANOS = 100000;
+
+    /**
+     * Entry point of the load test
+     * @param args optional number of commands (default 5,000,000), waiting
+     *             room size (default 10,000), seed (default 1) and
+     *             commands per second (default 0, as fast as possible)
+     */
+    public static void main(String[] args) {
+        long commands = args.length > 0 ? Long.parseLong(args[0]) : 5000000;
+        int waiting = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        System.out.printf("Warming up with %,d commands%n", WARMUP_COMMANDS);
+        run(WARMUP_COMMANDS, waiting, seed + 1, 0);
+        System.out.printf("Replaying %,d commands, ~%,d waiting, seed %d, "
+                + "%s%n", commands, waiting, seed,
+                rate > 0 ? String.format("%,.0f commands/s", rate)
+                         : "unthrottled");
+        Map<String, LatencyHistogram> latencies = new LinkedHashMap<
+                String, LatencyHistogram>();
+        long elapsed = run(commands, waiting, seed, rate, latencies);
+        report(latencies, commands, elapsed);
+    }
+
+    /**
+     * Replays generated commands without keeping their latencies
+     * @param commands		Number of commands to replay
+     * @param waiting		Waiting room size to hover around
+     * @param seed			Seed of the workload
+     * @param rate			Commands per second, 0 for unthrottled
+     * @return				Elapsed nanoseconds
+     */
+    private static long run(long commands, int waiting, long seed,
+            double rate) {
+        return run(commands, waiting, seed, rate,
+                new LinkedHashMap<String, LatencyHistogram>());
+    }
+
+    /**
+     * Replays generated commands through a fresh queue and engine. The
+     * commands are generated in batches ahead of timing, so generating
+     * them does not count towards their latency.
+     * @param commands		Number of commands to replay
+     * @param waiting		Waiting room size to hover around
+     * @param seed			Seed of the workload
+     * @param rate			Commands per second, 0 for unthrottled
+     * @param latencies		Histogram per command name, filled in
+     * @return				Elapsed nanoseconds
+     */
+    private static long run(long commands, int waiting, long seed,
+            double rate, Map<String, LatencyHistogram> latencies) {
+        PatientPriorityQueue priQueue = new PatientPriorityQueue();
+        TriageSystem engine = new TriageSystem(priQueue,
+                new PrintStream(OutputStream.nullOutputStream()));
+        WorkloadGenerator workload = new WorkloadGenerator(seed, waiting);
+        String[] lines = new String[BATCH];
+        LatencyHistogram[] histograms = new LatencyHistogram[BATCH];
+        double interval = rate > 0 ? 1e9 / rate : 0;
+
+        long start = System.nanoTime();
+        long done = 0;
+        while (done < commands) {
+            int batch = (int) Math.min(BATCH, commands - done);
+            for (int i = 0; i < batch; i++) {
+                lines[i] = workload.next();
+                histograms[i] = histogramFor(latencies, lines[i]);
+            }
+            for (int i = 0; i < batch; i++) {
+                long begin = System.nanoTime();
+                if (interval > 0) {
+                    long scheduled = start + (long) ((done + i) * interval);
+                    // parking overshoots by tens of microseconds, so the
+                    // last stretch is spun
+                    while (begin < scheduled) {
+                        if (scheduled - begin > SPIN_NANOS) {
+                            LockSupport.parkNanos(scheduled - begin
+                                    - SPIN_NANOS);
+                        } else {
+                            Thread.onSpinWait();
+                        }
+                        begin = System.nanoTime();
+                    }
+                    begin = scheduled;
+                }
+                engine.processLine(lines[i]);
+                histograms[i].record(System.nanoTime() - begin);
+            }
+            done += batch;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Finds the histogram of a command's name, creating it on first use
+     * @param latencies		Histogram per command name
+     * @param line			Command line
+     * @return				Histogram to record the command's latency in
+     */
+    private static LatencyHistogram histogramFor(
+            Map<String, LatencyHistogram> latencies, String line) {
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        LatencyHistogram histogram = latencies.get(command);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            latencies.put(command, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Prints throughput and latency percentiles per command
+     * @param latencies		Histogram per command name
+     * @param commands		Number of commands replayed
+     * @param elapsed		Elapsed nanoseconds
+     */
+    private static void report(Map<String, LatencyHistogram> latencies,
+            long commands, long elapsed) {
+        System.out.printf("%nThroughput: %,.0f commands/s over %.1f s%n%n",
+                commands * 1e9 / elapsed, elapsed / 1e9);
+        System.out.printf("%-8s %11s %10s %10s %10s %10s %10s%n", "command",
+                "count", "mean us", "p50 us", "p99 us", "p99.9 us",
+                "max us");
+        for (Map.Entry<String, LatencyHistogram> entry
+                : latencies.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            System.out.printf("%-8s %11d %10.2f %10.2f %10.2f %10.2f %10.1f%n",
+                    entry.getKey(), h.getCount(), h.getMean() / 1e3,
+                    h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3,
+                    h.getPercentile(99.9) / 1e3, h.getMax() / 1e3);
+        }
+    }
+}
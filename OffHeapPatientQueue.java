@@ -0,0 +1,310 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Hospital triage system for very large queues, e.g. regional disaster
+ * simulations with millions of patients. Patient records live outside the
+ * Java heap in a direct ByteBuffer arena, so the garbage collector only sees
+ * a few int arrays however many patients are waiting.
+ *
+ * Each record is a fixed-width slot holding the priority code, arrival
+ * number, current heap index and the offset and length of the name's UTF-8
+ * bytes in a separate name slab. The binary heap holds only int handles
+ * (slot numbers), and Patient objects are only created when one is handed
+ * back by peek, dequeue or getPatientList.
+ *
+ * Freed slots are reused. Names of called patients leave holes in the slab,
+ * which is compacted once more than half of it is holes. Slots are found by
+ * arrival number through an open-addressed IntLongMap holding only waiting
+ * patients, so nothing grows with the number of patients ever added.
+ * @author Ruifeng Wang
+ */
+public class OffHeapPatientQueue implements TriageQueue {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int RECORD_BYTES = 20;
+    private static final int PRIORITY = 0;      // field offsets in a record
+    private static final int ARRIVAL = 4;
+    private static final int HEAP_INDEX = 8;
+    private static final int NAME_OFFSET = 12;
+    private static final int NAME_LENGTH = 16;
+
+    private ByteBuffer records;     // RECORD_BYTES per slot, direct
+    private ByteBuffer names;       // UTF-8 names, direct
+    private int nameEnd;            // first unused byte of names
+    private int nameGarbage;        // bytes of names no longer referenced
+    private int[] heap;             // slot numbers, heap-ordered
+    private int size;               // number of patients in the heap
+    private int[] freeSlots;        // slots of called patients, a stack
+    private int freeCount;          // number of entries in freeSlots
+    private int slotCount;          // slots ever handed out
+    private IntLongMap slotById;    // arrival num -> slot, if waiting
+    private int nextPatientNumber;  // num assigned to next added patient
+
+    /**
+     * Creates an empty triage system with no patients.
+     */
+    public OffHeapPatientQueue() {
+        this.records = ByteBuffer.allocateDirect(
+                INITIAL_CAPACITY * RECORD_BYTES);
+        this.names = ByteBuffer.allocateDirect(INITIAL_CAPACITY * 16);
+        this.heap = new int[INITIAL_CAPACITY];
+        this.freeSlots = new int[INITIAL_CAPACITY];
+        this.slotById = new IntLongMap();
+        this.nextPatientNumber = 1;
+    }
+
+    @Override
+    public void addPatient(int priorityCode, String patientName) {
+        int arrivalOrder = nextPatientNumber++;
+        int slot = allocateSlot();
+        byte[] nameBytes = patientName.getBytes(StandardCharsets.UTF_8);
+        int base = slot * RECORD_BYTES;
+        records.putInt(base + PRIORITY, priorityCode);
+        records.putInt(base + ARRIVAL, arrivalOrder);
+        records.putInt(base + NAME_OFFSET, storeName(nameBytes));
+        records.putInt(base + NAME_LENGTH, nameBytes.length);
+        slotById.put(arrivalOrder, slot);
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        siftUp(size++, slot);
+    }
+
+    @Override
+    public Patient peek() {
+        if (size == 0) {
+            throw new NoSuchElementException("No patients are waiting");
+        }
+        return toPatient(heap[0]);
+    }
+
+    @Override
+    public Patient dequeue() {
+        Patient dequeued = peek();
+        int slot = heap[0];
+        slotById.remove(dequeued.getArrivalOrder(), -1);
+        nameGarbage += records.getInt(slot * RECORD_BYTES + NAME_LENGTH);
+        freeSlot(slot);
+        size--;
+        if (size > 0) {
+            siftDown(0, heap[size]);
+        }
+        if (nameGarbage > nameEnd / 2 && nameEnd > INITIAL_CAPACITY * 16) {
+            compactNames();
+        }
+        return dequeued;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+        int slot = (int) slotById.get(arrivalOrder, -1);
+        if (slot < 0) {
+            return false;
+        }
+        int base = slot * RECORD_BYTES;
+        int oldPriority = records.getInt(base + PRIORITY);
+        records.putInt(base + PRIORITY, priorityCode);
+        int index = records.getInt(base + HEAP_INDEX);
+        if (priorityCode < oldPriority) {
+            siftUp(index, slot);
+        } else {
+            siftDown(index, slot);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the patients currently waiting, in heap order
+     * @return the list of patients that have not been called
+     */
+    @Override
+    public ArrayList<Patient> getPatientList() {
+        ArrayList<Patient> list = new ArrayList<Patient>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(toPatient(heap[i]));
+        }
+        return list;
+    }
+
+    /**
+     * Finds the bytes used outside the Java heap
+     * @return		Capacity of the record arena and name slab
+     */
+    public long getOffHeapBytes() {
+        return (long) records.capacity() + names.capacity();
+    }
+
+    /**
+     * Finds number of slots in the arrival number index
+     * @return		Capacity of the index
+     */
+    int getIndexCapacity() {
+        return slotById.capacity();
+    }
+
+    /**
+     * Creates a Patient object for a record
+     * @param slot		Slot of the record
+     * @return			Patient stored in that slot
+     */
+    private Patient toPatient(int slot) {
+        int base = slot * RECORD_BYTES;
+        byte[] nameBytes = new byte[records.getInt(base + NAME_LENGTH)];
+        names.get(records.getInt(base + NAME_OFFSET), nameBytes);
+        return new Patient(records.getInt(base + PRIORITY),
+                records.getInt(base + ARRIVAL),
+                new String(nameBytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks if a record sorts before another, by priority and then arrival
+     * @param slot		Slot of the first record
+     * @param other		Slot of the second record
+     * @return			True if the first record is called first
+     */
+    private boolean isBefore(int slot, int other) {
+        int base = slot * RECORD_BYTES;
+        int otherBase = other * RECORD_BYTES;
+        int priority = records.getInt(base + PRIORITY);
+        int otherPriority = records.getInt(otherBase + PRIORITY);
+        return priority < otherPriority || (priority == otherPriority
+                && records.getInt(base + ARRIVAL)
+                        < records.getInt(otherBase + ARRIVAL));
+    }
+
+    /**
+     * Puts a record's slot at a heap index and remembers the index
+     * @param index		Index of the heap
+     * @param slot		Slot of the record
+     */
+    private void place(int index, int slot) {
+        heap[index] = slot;
+        records.putInt(slot * RECORD_BYTES + HEAP_INDEX, index);
+    }
+
+    /**
+     * Moves a hole up until the record fits, then fills the hole with it
+     * @param index		Index of the hole
+     * @param slot		Slot of the record to place
+     */
+    private void siftUp(int index, int slot) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBefore(slot, heap[parent])) {
+                break;
+            }
+            place(index, heap[parent]);
+            index = parent;
+        }
+        place(index, slot);
+    }
+
+    /**
+     * Moves a hole down until the record fits, then fills the hole with it
+     * @param index		Index of the hole
+     * @param slot		Slot of the record to place
+     */
+    private void siftDown(int index, int slot) {
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && isBefore(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!isBefore(heap[child], slot)) {
+                break;
+            }
+            place(index, heap[child]);
+            index = child;
+        }
+        place(index, slot);
+    }
+
+    /**
+     * Takes a free record slot, growing the arena if there is none
+     * @return		Slot number
+     */
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if ((slotCount + 1) * RECORD_BYTES > records.capacity()) {
+            records = grow(records, records.capacity() * 2);
+        }
+        return slotCount++;
+    }
+
+    /**
+     * Returns a record slot for reuse
+     * @param slot		Slot of a called patient
+     */
+    private void freeSlot(int slot) {
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Appends a name to the name slab, growing it if needed
+     * @param nameBytes		UTF-8 bytes of the name
+     * @return				Offset of the name in the slab
+     */
+    private int storeName(byte[] nameBytes) {
+        if (nameEnd + nameBytes.length > names.capacity()) {
+            names = grow(names, Math.max(names.capacity() * 2,
+                    nameEnd + nameBytes.length));
+        }
+        int offset = nameEnd;
+        names.put(offset, nameBytes);
+        nameEnd += nameBytes.length;
+        return offset;
+    }
+
+    /**
+     * Copies the names of waiting patients to a fresh slab, dropping the
+     * names of called patients
+     */
+    private void compactNames() {
+        ByteBuffer compacted = ByteBuffer.allocateDirect(Math.max(
+                INITIAL_CAPACITY * 16, (nameEnd - nameGarbage) * 2));
+        int end = 0;
+        for (int i = 0; i < size; i++) {
+            int base = heap[i] * RECORD_BYTES;
+            int offset = records.getInt(base + NAME_OFFSET);
+            int length = records.getInt(base + NAME_LENGTH);
+            compacted.put(end, names, offset, length);
+            records.putInt(base + NAME_OFFSET, end);
+            end += length;
+        }
+        names = compacted;
+        nameEnd = end;
+        nameGarbage = 0;
+    }
+
+    /**
+     * Copies a direct buffer into a larger one
+     * @param buffer		Buffer to copy
+     * @param capacity		Capacity of the new buffer
+     * @return				New buffer with the same contents
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        bigger.put(0, buffer, 0, buffer.capacity());
+        return bigger;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+/**
+ * Receives every change made to a PatientPriorityQueue, after the change
+ * has been applied, so that it can be persisted or forwarded.
+ * @author Ruifeng Wang
+ */
+public interface OperationLog {
+
+    /**
+     * Called after a patient was added
+     * @param patient		Patient that was added, with its arrival number
+     */
+    void logAdd(Patient patient);
+
+    /**
+     * Called after the patient at the top of the queue was removed
+     * @param patient		Patient that was removed
+     */
+    void logDequeue(Patient patient);
+
+    /**
+     * Called after a patient was removed from anywhere in the queue without
+     * being called, e.g. because they left
+     * @param patient		Patient that was removed
+     */
+    void logRemove(Patient patient);
+
+    /**
+     * Called after a patient's priority was changed
+     * @param patient		Patient record with the new priority code
+     */
+    void logChange(Patient patient);
+
+    /**
+     * Called after every patient was removed from the queue
+     */
+    void logClear();
+
+    /**
+     * Called after the queue skipped arrival numbers, e.g. those of the
+     * patients a merged or loaded queue had already called, which adding
+     * the waiting patients again would not skip. Logs that only follow the
+     * waiting patients can ignore it.
+     * @param next		Lowest arrival number later patients may get
+     */
+    default void logNumber(int next) {
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Hospital triage system implemented as a binary heap of primitive sort keys.
+ * Each key packs the priority code into the high 32 bits and the arrival
+ * number into the low 32 bits, so one long comparison orders patients by
+ * priority and then by arrival. Names are kept in a parallel array, and an
+ * open-addressed IntLongMap finds a waiting patient's heap index by arrival
+ * number, so the index stays sized to the patients waiting however many
+ * have been called.
+ *
+ * Arrays only grow by doubling and the index only resizes when the waiting
+ * room doubles or shrinks to an eighth, so adding, dequeuing and changing a
+ * priority create no garbage apart from the Patient handed back by peek and
+ * dequeue.
+ * @author Ruifeng Wang
+ */
+public class PackedPatientHeap implements TriageQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;            // heap of (priority << 32 | arrival)
+    private String[] names;         // names[i] belongs to keys[i]
+    private IntLongMap indexById;   // arrival num -> heap index, if waiting
+    private int size;               // number of patients in the heap
+    private int nextPatientNumber;  // num assigned to next added patient
+
+    /**
+     * Creates an empty triage system with no patients.
+     */
+    public PackedPatientHeap() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.names = new String[INITIAL_CAPACITY];
+        this.indexById = new IntLongMap();
+        this.nextPatientNumber = 1;
+    }
+
+    @Override
+    public void addPatient(int priorityCode, String patientName) {
+        int arrivalOrder = nextPatientNumber++;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            names = Arrays.copyOf(names, size * 2);
+        }
+        siftUp(size++, pack(priorityCode, arrivalOrder), patientName);
+    }
+
+    @Override
+    public Patient peek() {
+        if (size == 0) {
+            throw new NoSuchElementException("No patients are waiting");
+        }
+        return toPatient(0);
+    }
+
+    @Override
+    public Patient dequeue() {
+        Patient dequeued = peek();
+        indexById.remove(dequeued.getArrivalOrder(), -1);
+        size--;
+        long lastKey = keys[size];
+        String lastName = names[size];
+        names[size] = null;
+        if (size > 0) {
+            siftDown(0, lastKey, lastName);
+        }
+        return dequeued;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+        int index = (int) indexById.get(arrivalOrder, -1);
+        if (index < 0) {
+            return false;
+        }
+        long oldKey = keys[index];
+        long newKey = pack(priorityCode, arrivalOrder);
+        if (newKey < oldKey) {
+            siftUp(index, newKey, names[index]);
+        } else {
+            siftDown(index, newKey, names[index]);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the patients currently waiting, in heap order
+     * @return the list of patients that have not been called
+     */
+    @Override
+    public ArrayList<Patient> getPatientList() {
+        ArrayList<Patient> list = new ArrayList<Patient>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(toPatient(i));
+        }
+        return list;
+    }
+
+    /**
+     * Finds number of slots in the arrival number index
+     * @return		Capacity of the index
+     */
+    int getIndexCapacity() {
+        return indexById.capacity();
+    }
+
+    /**
+     * Builds the sort key of a patient
+     * @param priorityCode		Patient's priority code
+     * @param arrivalOrder		Patient's arrival number
+     * @return					Key ordering by priority, then arrival
+     */
+    private static long pack(int priorityCode, int arrivalOrder) {
+        return ((long) priorityCode << 32) | arrivalOrder;
+    }
+
+    /**
+     * Creates a Patient object for a heap slot
+     * @param index		Index of the heap slot
+     * @return			Patient stored in that slot
+     */
+    private Patient toPatient(int index) {
+        long key = keys[index];
+        return new Patient((int) (key >>> 32), (int) key, names[index]);
+    }
+
+    /**
+     * Stores a patient in a heap slot and records the slot in the index
+     * @param index		Index of the heap slot
+     * @param key		Sort key of the patient
+     * @param name		Name of the patient
+     */
+    private void place(int index, long key, String name) {
+        keys[index] = key;
+        names[index] = name;
+        indexById.put((int) key, index);
+    }
+
+    /**
+     * Moves a hole up until the key fits, then fills the hole with it
+     * @param index		Index of the hole
+     * @param key		Sort key to place
+     * @param name		Name belonging to the key
+     */
+    private void siftUp(int index, long key, String name) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(index, keys[parent], names[parent]);
+            index = parent;
+        }
+        place(index, key, name);
+    }
+
+    /**
+     * Moves a hole down until the key fits, then fills the hole with it
+     * @param index		Index of the hole
+     * @param key		Sort key to place
+     * @param name		Name belonging to the key
+     */
+    private void siftDown(int index, long key, String name) {
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && keys[child + 1] < keys[child]) {
+                child++;
+            }
+            if (key <= keys[child]) {
+                break;
+            }
+            place(index, keys[child], names[child]);
+            index = child;
+        }
+        place(index, key, name);
+    }
+}
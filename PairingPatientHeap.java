@@ -0,0 +1,345 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+
+/**
+ * Hospital triage system implemented as a pairing heap, so that the waiting
+ * rooms of two sites can be consolidated in constant time when a satellite
+ * clinic closes.
+ *
+ * Merged patients keep their order among themselves and are numbered after
+ * the patients already waiting, as if they had all just arrived in their
+ * original order. Renumbering them one by one would cost O(n), so a patient
+ * instead stores its number within the segment it was added to, and the
+ * segment stores the offset to add. A merge shifts the other queue's
+ * segments as a whole, so it costs O(1) in the number of patients (plus
+ * the number of merges the other queue itself went through).
+ *
+ * Adding and merging are O(1). Dequeuing is O(log n) amortized, by the
+ * usual two-pass pairing of the root's children.
+ * @author Ruifeng Wang
+ */
+public class PairingPatientHeap implements TriageQueue {
+    private Node root;                  // patient to be called next
+    private int size;                   // number of patients in the heap
+    private int nextPatientNumber;      // num assigned to next added patient
+    private ArrayList<Segment> segments; // by increasing offset
+    private Segment current;            // segment new patients are added to
+    private ArrayList<Node> pairing;    // reused by the two-pass pairing
+
+    /**
+     * Creates an empty triage system with no patients.
+     */
+    public PairingPatientHeap() {
+        this.nextPatientNumber = 1;
+        this.segments = new ArrayList<Segment>();
+        this.pairing = new ArrayList<Node>();
+        startSegment();
+    }
+
+    @Override
+    public void addPatient(int priorityCode, String patientName) {
+        int local = nextPatientNumber++ - current.offset;
+        Node node = new Node(priorityCode, local, patientName, current);
+        current.nodes.put(local, node);
+        root = link(root, node);
+        size++;
+    }
+
+    @Override
+    public Patient peek() {
+        if (root == null) {
+            throw new NoSuchElementException("No patients are waiting");
+        }
+        return root.toPatient();
+    }
+
+    @Override
+    public Patient dequeue() {
+        Patient dequeued = peek();
+        Node old = root;
+        old.segment.nodes.remove(old.local);
+        root = pairChildren(old);
+        size--;
+        return dequeued;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+        Node node = find(arrivalOrder);
+        if (node == null) {
+            return false;
+        }
+        int oldPriority = node.priorityCode;
+        node.priorityCode = priorityCode;
+        if (node == root) {
+            if (priorityCode > oldPriority) {
+                root = link(pairChildren(node), node);
+            }
+        } else if (priorityCode < oldPriority) {
+            // moved up: its subtree is still heap-ordered below it
+            cut(node);
+            root = link(root, node);
+        } else if (priorityCode > oldPriority) {
+            // moved down: its children may now belong above it
+            cut(node);
+            Node children = pairChildren(node);
+            root = link(link(root, children), node);
+        }
+        return true;
+    }
+
+    /**
+     * Moves every patient waiting in another heap into this one in O(1).
+     * They keep their order among themselves and are numbered after this
+     * heap's patients. The other heap is left empty and numbers its next
+     * patient 1 again.
+     * @param other		Heap to empty into this one
+     * @return			Amount added to the other heap's arrival numbers
+     */
+    public int merge(PairingPatientHeap other) {
+        if (other == this) {
+            throw new IllegalArgumentException(
+                    "Cannot merge a queue into itself");
+        }
+        int shift = nextPatientNumber - 1;
+        for (int i = 0; i < other.segments.size(); i++) {
+            Segment segment = other.segments.get(i);
+            if (!segment.nodes.isEmpty()) {
+                segment.offset += shift;
+                segments.add(segment);
+            }
+        }
+        nextPatientNumber += other.nextPatientNumber - 1;
+        root = link(root, other.root);
+        size += other.size;
+
+        other.root = null;
+        other.size = 0;
+        other.nextPatientNumber = 1;
+        other.segments = new ArrayList<Segment>();
+        other.current = null;
+        other.startSegment();
+        // later patients must not land in a merged segment's range
+        startSegment();
+        return shift;
+    }
+
+    /**
+     * Gets the patients currently waiting, in heap order
+     * @return the list of patients that have not been called
+     */
+    @Override
+    public ArrayList<Patient> getPatientList() {
+        ArrayList<Patient> list = new ArrayList<Patient>(size);
+        ArrayList<Node> pending = new ArrayList<Node>();
+        if (root != null) {
+            pending.add(root);
+        }
+        while (!pending.isEmpty()) {
+            Node node = pending.remove(pending.size() - 1);
+            list.add(node.toPatient());
+            for (Node child = node.child; child != null;
+                    child = child.sibling) {
+                pending.add(child);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Starts a new segment for patients added from now on, dropping the
+     * current one if nobody was ever added to it
+     */
+    private void startSegment() {
+        if (current != null && current.nodes.isEmpty()
+                && segments.get(segments.size() - 1) == current) {
+            segments.remove(segments.size() - 1);
+        }
+        current = new Segment(nextPatientNumber - 1);
+        segments.add(current);
+    }
+
+    /**
+     * Finds the node of a waiting patient
+     * @param arrivalOrder		Arrival number of the patient
+     * @return					Node of the patient, null if not waiting
+     */
+    private Node find(int arrivalOrder) {
+        // last segment whose offset is below the arrival number
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).offset < arrivalOrder) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (segments.isEmpty() || segments.get(low).offset >= arrivalOrder) {
+            return null;
+        }
+        Segment segment = segments.get(low);
+        return segment.nodes.get(arrivalOrder - segment.offset);
+    }
+
+    /**
+     * Joins two heaps by making the later-called root the first child of
+     * the other
+     * @param a		Root of a heap, or null
+     * @param b		Root of a heap, or null
+     * @return		Root of the joined heap
+     */
+    private static Node link(Node a, Node b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (b.isBefore(a)) {
+            Node swap = a;
+            a = b;
+            b = swap;
+        }
+        b.prev = a;
+        b.sibling = a.child;
+        if (a.child != null) {
+            a.child.prev = b;
+        }
+        a.child = b;
+        return a;
+    }
+
+    /**
+     * Detaches a node, with its subtree, from its parent and siblings
+     * @param node		Node other than the root
+     */
+    private static void cut(Node node) {
+        if (node.prev.child == node) {
+            node.prev.child = node.sibling;
+        } else {
+            node.prev.sibling = node.sibling;
+        }
+        if (node.sibling != null) {
+            node.sibling.prev = node.prev;
+        }
+        node.prev = null;
+        node.sibling = null;
+    }
+
+    /**
+     * Detaches the children of a node and joins them into one heap: first
+     * in pairs from left to right, then the pairs from right to left
+     * @param parent		Node whose children to join
+     * @return				Root of the joined heap, null if no children
+     */
+    private Node pairChildren(Node parent) {
+        Node child = parent.child;
+        parent.child = null;
+        while (child != null) {
+            Node first = child;
+            Node second = child.sibling;
+            child = second == null ? null : second.sibling;
+            first.prev = null;
+            first.sibling = null;
+            if (second != null) {
+                second.prev = null;
+                second.sibling = null;
+            }
+            pairing.add(link(first, second));
+        }
+        Node joined = null;
+        for (int i = pairing.size() - 1; i >= 0; i--) {
+            joined = link(pairing.get(i), joined);
+        }
+        pairing.clear();
+        return joined;
+    }
+
+    /**
+     * Range of arrival numbers whose patients were added to the same heap
+     * before any merge renumbered them.
+     */
+    private static class Segment {
+        private int offset;                     // added to local numbers
+        private HashMap<Integer, Node> nodes;   // waiting, by local number
+
+        /**
+         * Creates an empty segment
+         * @param offset		Arrival number of its patient number 0
+         */
+        Segment(int offset) {
+            this.offset = offset;
+            this.nodes = new HashMap<Integer, Node>();
+        }
+    }
+
+    /**
+     * One waiting patient, linked to its first child, next sibling and to
+     * its previous sibling or, for a first child, its parent.
+     */
+    private static class Node {
+        private int priorityCode;   // current priority
+        private int local;          // arrival number within the segment
+        private String name;        // patient's name
+        private Segment segment;    // segment the patient was added to
+        private Node child;         // first child
+        private Node sibling;       // next sibling
+        private Node prev;          // previous sibling, or parent
+
+        /**
+         * Creates a node without links
+         * @param priorityCode		Patient's priority code
+         * @param local				Arrival number within the segment
+         * @param name				Patient's name
+         * @param segment			Segment the patient is added to
+         */
+        Node(int priorityCode, int local, String name, Segment segment) {
+            this.priorityCode = priorityCode;
+            this.local = local;
+            this.name = name;
+            this.segment = segment;
+        }
+
+        /**
+         * Finds the patient's arrival number after any merges
+         * @return		Arrival number
+         */
+        int arrivalOrder() {
+            return segment.offset + local;
+        }
+
+        /**
+         * Checks if this patient is called before another, by priority and
+         * then arrival
+         * @param other		Patient to compare with
+         * @return			True if this patient is called first
+         */
+        boolean isBefore(Node other) {
+            return priorityCode < other.priorityCode
+                    || (priorityCode == other.priorityCode
+                        && arrivalOrder() < other.arrivalOrder());
+        }
+
+        /**
+         * Creates a Patient object for the node
+         * @return		Patient with the current priority and arrival number
+         */
+        Patient toPatient() {
+            return new Patient(priorityCode, arrivalOrder(), name);
+        }
+    }
+}
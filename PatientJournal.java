@@ -0,0 +1,405 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only write-ahead journal for a PatientPriorityQueue. Every add,
+ * dequeue and priority change is appended to a log file, so the waiting
+ * room survives a crash without anyone typing `save`. So are skipped
+ * arrival numbers, so that recovery never hands out a number twice.
+ *
+ * Records are buffered and written together on commit (group commit), and
+ * the fsync policy decides how often the log is forced to disk. Once the
+ * log holds enough records, the next commit folds it into a binary
+ * snapshot and starts a new, empty log. A full group of pending records is
+ * written as soon as it is complete, even in the middle of an operation,
+ * but compaction only ever happens in commit, which callers make between
+ * operations: a snapshot taken in the middle of a batch would already hold
+ * changes whose records are still to come.
+ *
+ * Files live in one directory as triage-GEN.snap and triage-GEN.log, where
+ * GEN grows by one per compaction. A generation's snapshot is only renamed
+ * into place once fully written and forced to disk, and older generations
+ * are only deleted once the rename is, so recovery loads the newest
+ * snapshot and replays the log of the same generation, whatever point a
+ * crash or power loss hit.
+ * @author Ruifeng Wang
+ */
+public class PatientJournal implements OperationLog {
+
+    /**
+     * How often committed records are forced to the storage device.
+     */
+    public enum SyncPolicy {
+        /** Force the log at every commit. */
+        ALWAYS,
+        /** Force the log at most once per sync interval. */
+        INTERVAL,
+        /** Leave it to the operating system; force only on close. */
+        NEVER
+    }
+
+    private File directory;         // where snapshots and logs are kept
+    private SyncPolicy syncPolicy;  // when to force the log to disk
+    private long syncIntervalMillis;// minimum time between INTERVAL syncs
+    private int groupSize;          // pending records that force a commit
+    private int compactEvery;       // logged records that trigger compaction
+
+    private PatientPriorityQueue queue; // queue being journaled
+    private FileChannel log;        // log of the current generation
+    private int generation;         // generation of snapshot and log in use
+    private StringBuilder pending;  // records not yet written to the log
+    private int pendingRecords;     // number of records in pending
+    private int loggedRecords;      // records in the current log
+    private long lastSyncMillis;    // when the log was last forced
+
+    /**
+     * Creates a journal that forces every commit, commits every 64 records
+     * and compacts every 10,000 records.
+     * @param directory		Directory for snapshots and logs
+     */
+    public PatientJournal(File directory) {
+        this(directory, SyncPolicy.ALWAYS, 0, 64, 10000);
+    }
+
+    /**
+     * Creates a journal. Nothing is read or written until recover is called.
+     * @param directory				Directory for snapshots and logs
+     * @param syncPolicy			When to force the log to disk
+     * @param syncIntervalMillis	Minimum time between INTERVAL syncs
+     * @param groupSize				Pending records that force a commit
+     * @param compactEvery			Logged records that trigger compaction
+     */
+    public PatientJournal(File directory, SyncPolicy syncPolicy,
+            long syncIntervalMillis, int groupSize, int compactEvery) {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.groupSize = groupSize;
+        this.compactEvery = compactEvery;
+        this.pending = new StringBuilder();
+    }
+
+    /**
+     * Restores a queue from the newest snapshot and the tail of its log,
+     * then starts journaling every change to the queue
+     * @param queue		Empty queue to restore into
+     * @throws IOException if the journal cannot be read or opened
+     */
+    public void recover(PatientPriorityQueue queue) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory "
+                    + directory);
+        }
+        this.queue = queue;
+        generation = newestSnapshot();
+        if (generation >= 0) {
+            queue.loadBinary(snapshotFile(generation).getPath());
+        } else {
+            generation = 0;
+        }
+        File logFile = logFile(generation);
+        if (logFile.exists()) {
+            loggedRecords = replay(logFile);
+        }
+        deleteOlderGenerations();
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        queue.addOperationLog(this);
+    }
+
+    @Override
+    public void logAdd(Patient patient) {
+        pending.append("add ").append(patient.getPriorityCode()).append(' ')
+               .append(patient.getArrivalOrder()).append(' ')
+               .append(patient.getName()).append('\n');
+        recordAppended();
+    }
+
+    @Override
+    public void logDequeue(Patient patient) {
+        pending.append("next ").append(patient.getArrivalOrder())
+               .append('\n');
+        recordAppended();
+    }
+
+    @Override
+    public void logRemove(Patient patient) {
+        pending.append("leave ").append(patient.getArrivalOrder())
+               .append('\n');
+        recordAppended();
+    }
+
+    @Override
+    public void logChange(Patient patient) {
+        pending.append("change ").append(patient.getArrivalOrder())
+               .append(' ').append(patient.getPriorityCode()).append('\n');
+        recordAppended();
+    }
+
+    @Override
+    public void logClear() {
+        pending.append("clear\n");
+        recordAppended();
+    }
+
+    @Override
+    public void logNumber(int next) {
+        pending.append("number ").append(next).append('\n');
+        recordAppended();
+    }
+
+    /**
+     * Writes all pending records to the log as one group, forcing them to
+     * disk as the sync policy requires, and compacts if the log is full.
+     * Only call it between operations on the queue, never from inside one.
+     * @throws IOException if the log cannot be written
+     */
+    public void commit() throws IOException {
+        writePending();
+        if (loggedRecords >= compactEvery) {
+            compact();
+        }
+    }
+
+    /**
+     * Folds the log into a new snapshot and starts an empty log. Only call
+     * it between operations on the queue, never from inside one.
+     * @throws IOException if the snapshot or new log cannot be written
+     */
+    public void compact() throws IOException {
+        writePending();
+        int next = generation + 1;
+        File temp = new File(directory, "triage-" + next + ".snap.tmp");
+        queue.saveBinary(temp.getPath());
+        // forced whatever the sync policy: once the older generations are
+        // deleted, this is the only copy of the waiting room
+        FileChannel snapshot = FileChannel.open(temp.toPath(),
+                StandardOpenOption.WRITE);
+        try {
+            snapshot.force(true);
+        } finally {
+            snapshot.close();
+        }
+        Files.move(temp.toPath(), snapshotFile(next).toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        log.close();
+        generation = next;
+        log = FileChannel.open(logFile(generation).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        loggedRecords = 0;
+        forceDirectory();
+        deleteOlderGenerations();
+    }
+
+    /**
+     * Commits pending records, forces the log and stops journaling
+     * @throws IOException if the log cannot be written
+     */
+    public void close() throws IOException {
+        writePending();
+        log.force(false);
+        log.close();
+        queue.removeOperationLog(this);
+    }
+
+    /**
+     * Counts a record added to pending and writes a full group. Called
+     * from inside queue operations, so it never compacts.
+     */
+    private void recordAppended() {
+        pendingRecords++;
+        if (pendingRecords >= groupSize) {
+            try {
+                writePending();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes all pending records to the log as one group, forcing them to
+     * disk as the sync policy requires
+     * @throws IOException if the log cannot be written
+     */
+    private void writePending() throws IOException {
+        if (pendingRecords == 0) {
+            return;
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(pending.toString());
+        while (bytes.hasRemaining()) {
+            log.write(bytes);
+        }
+        loggedRecords += pendingRecords;
+        pending.setLength(0);
+        pendingRecords = 0;
+
+        long now = System.currentTimeMillis();
+        if (syncPolicy == SyncPolicy.ALWAYS
+                || (syncPolicy == SyncPolicy.INTERVAL
+                    && now - lastSyncMillis >= syncIntervalMillis)) {
+            log.force(false);
+            lastSyncMillis = now;
+        }
+    }
+
+    /**
+     * Forces the journal directory to disk, so that renamed and created
+     * files survive a power loss
+     */
+    private void forceDirectory() {
+        try {
+            FileChannel dir = FileChannel.open(directory.toPath(),
+                    StandardOpenOption.READ);
+            try {
+                dir.force(true);
+            } finally {
+                dir.close();
+            }
+        } catch (IOException e) {
+            // not every platform can open a directory, e.g. Windows
+        }
+    }
+
+    /**
+     * Applies the records of a log to the queue. A final line without a
+     * newline was cut off by a crash and is ignored.
+     * @param logFile		Log to replay
+     * @return				Number of records applied
+     * @throws IOException if the log cannot be read or is corrupt
+     */
+    private int replay(File logFile) throws IOException {
+        String contents = new String(Files.readAllBytes(logFile.toPath()),
+                StandardCharsets.UTF_8);
+        int complete = contents.lastIndexOf('\n') + 1;
+        BufferedReader reader = new BufferedReader(
+                new StringReader(contents.substring(0, complete)));
+        int records = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            applyRecord(queue, line);
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Applies one log record to a queue. Replication followers apply the
+     * records they are sent with this too.
+     * @param queue		Queue to apply the record to
+     * @param line		Record to apply
+     * @throws IOException if the record does not match the queue state
+     */
+    static void applyRecord(PatientPriorityQueue queue, String line)
+            throws IOException {
+        String[] fields = line.split(" ", 4);
+        if (fields[0].equals("add")) {
+            queue.restorePatient(Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]), fields[3]);
+        } else if (fields[0].equals("next")) {
+            int expected = Integer.parseInt(fields[1]);
+            if (queue.size() == 0
+                    || queue.dequeue().getArrivalOrder() != expected) {
+                throw new IOException("Journal out of sync at: " + line);
+            }
+        } else if (fields[0].equals("leave")) {
+            if (queue.removeById(Integer.parseInt(fields[1])) == null) {
+                throw new IOException("Journal out of sync at: " + line);
+            }
+        } else if (fields[0].equals("change")) {
+            if (!queue.changePriorityById(Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]))) {
+                throw new IOException("Journal out of sync at: " + line);
+            }
+        } else if (fields[0].equals("clear")) {
+            queue.clear();
+        } else if (fields[0].equals("number")) {
+            queue.reserveArrivalNumbers(Integer.parseInt(fields[1]));
+        } else {
+            throw new IOException("Unknown journal record: " + line);
+        }
+    }
+
+    /**
+     * Finds the newest complete snapshot in the journal directory
+     * @return		Its generation, -1 if there is none
+     */
+    private int newestSnapshot() {
+        int newest = -1;
+        String[] names = directory.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            int gen = generationOf(names[i], ".snap");
+            newest = Math.max(newest, gen);
+        }
+        return newest;
+    }
+
+    /**
+     * Removes snapshots and logs older than the current generation, and any
+     * snapshot left half written by a crash
+     */
+    private void deleteOlderGenerations() {
+        File[] files = directory.listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            int gen = Math.max(generationOf(name, ".snap"),
+                    generationOf(name, ".log"));
+            if ((gen >= 0 && gen < generation) || name.endsWith(".snap.tmp")) {
+                files[i].delete();
+            }
+        }
+    }
+
+    /**
+     * Parses the generation out of a journal file name
+     * @param name		File name
+     * @param suffix	Expected suffix, ".snap" or ".log"
+     * @return			Generation, -1 if the name is not such a file
+     */
+    private static int generationOf(String name, String suffix) {
+        if (!name.startsWith("triage-") || !name.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(7,
+                    name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Snapshot file of a generation
+     * @param gen		Generation
+     * @return			Snapshot file
+     */
+    private File snapshotFile(int gen) {
+        return new File(directory, "triage-" + gen + ".snap");
+    }
+
+    /**
+     * Log file of a generation
+     * @param gen		Generation
+     * @return			Log file
+     */
+    private File logFile(int gen) {
+        return new File(directory, "triage-" + gen + ".log");
+    }
+}
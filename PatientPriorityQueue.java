@@ -4,73 +4,409 @@
  */
 package rwang_P2X;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-
-import rwang_P2.Patient;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
 
 /**
- * Hospital triage system implemented using a heap.
+ * Hospital triage system implemented using a d-ary heap. Patients are
+ * ordered by priority code, and patients with the same priority code are
+ * seen in the order they arrived.
  * @author Ruifeng Wang
  */
-public class PatientPriorityQueue {
+public class PatientPriorityQueue implements TriageQueue {
+    private static final int SNAPSHOT_MAGIC = 0x54524751; // "TRGQ"
+
     private ArrayList<Patient> patients; // heap property is always satisfied
     private int nextPatientNumber;       // num assigned to next added patient
+    private HashMap<Integer, Integer> positions; // arrival num -> heap index
+    private ArrivalTrie arrivals;        // in arrival order
+    private TreeMap<String, Patient> names; // by nameKey, for prefix search
+    private int arity;                   // children per heap node
+    private ArrayList<OperationLog> logs; // notified after every change
+    private long agingMillis;            // wait before promotion, 0 = off
+    private LongSupplier clock;          // current time in milliseconds
+    private PriorityQueue<AgingEntry> agingSchedule; // by promotion time
+    private TriageStats stats;           // null when not measured
+    private long version;                // bumped by every change
+    private volatile QueueSnapshot snapshot; // latest published view
+    private volatile boolean snapshotWanted; // a reader asked since then
+    private volatile boolean snapshotStale;  // changed since it was published
 
     /**
-     * Creates an empty triage system with no patients.
+     * Creates an empty triage system with no patients, backed by a binary
+     * heap.
      */
     public PatientPriorityQueue() {
+        this(2);
+    }
+
+    /**
+     * Creates an empty triage system with no patients.
+     * @param arity		Children per heap node, one of 2, 4 or 8. Wider
+     *					heaps are shallower and scan siblings that share a
+     *					cache line, at the cost of more comparisons per level.
+     */
+    public PatientPriorityQueue(int arity) {
+        if(arity != 2 && arity != 4 && arity != 8) {
+        	throw new IllegalArgumentException("Heap arity must be 2, 4 or 8");
+        }
+        this.arity = arity;
         this.patients = new ArrayList<Patient>();
         this.nextPatientNumber = 1;
+        this.positions = new HashMap<Integer, Integer>();
+        this.arrivals = new ArrivalTrie();
+        this.names = new TreeMap<String, Patient>();
+        this.logs = new ArrayList<OperationLog>();
+        this.clock = System::currentTimeMillis;
+        this.agingSchedule = new PriorityQueue<AgingEntry>();
+        this.snapshot = new QueueSnapshot(0, arrivals.snapshot(), null);
     }
 
     /**
-     * Gets the list of patients currently in the waiting room
+     * Gets the list of patients currently in the waiting room. This is the
+     * live heap, only to be read by the thread changing the queue; other
+     * threads should read getSnapshot() instead.
      * @return the list of patients that have not been called
      */
+    @Override
     public ArrayList<Patient> getPatientList() {
         return patients;
     }
 
+    /**
+     * Gets an immutable view of the queue as it was after the last
+     * completed change, from any thread, at constant cost. While the latest
+     * published view is current this takes no lock. It also asks the queue
+     * to publish a view at the end of its next change, so a reader polling
+     * the queue keeps finding a current one. Otherwise the view is
+     * published here, holding the queue's monitor for O(1); threads that
+     * change the queue must hold its monitor, as TriageSystem does.
+     * @return		Snapshot of the current version
+     */
+    public QueueSnapshot getSnapshot() {
+    	if(!snapshotStale) {
+    		if(!snapshotWanted) {
+    			snapshotWanted = true;
+    		}
+    		return snapshot;
+    	}
+    	synchronized(this) {
+    		return publishSnapshot();
+    	}
+    }
+
+    /**
+     * Publishes a view of the queue for getSnapshot(), unless nothing
+     * changed since the last one. The view shares the arrival trie's nodes,
+     * so publishing costs O(1), and the changes after it copy the few nodes
+     * they touch.
+     * @return		Snapshot of the current version
+     */
+    private QueueSnapshot publishSnapshot() {
+    	QueueSnapshot published = snapshot;
+    	if(published.getVersion() != version) {
+    		published = new QueueSnapshot(version, arrivals.snapshot(),
+    				size() == 0 ? null : patients.get(0));
+    		snapshot = published;
+    	}
+    	snapshotWanted = false;
+    	snapshotStale = false;
+    	return published;
+    }
+
+    /**
+     * Ends a change: publishes a view if a reader asked for one since the
+     * last, and otherwise only marks the published view stale. Changes
+     * nobody reads therefore never freeze the arrival trie, and keep
+     * changing its nodes in place.
+     */
+    private void publish() {
+    	if(snapshotWanted) {
+    		publishSnapshot();
+    	} else if(!snapshotStale && snapshot.getVersion() != version) {
+    		snapshotStale = true;
+    	}
+    }
+
+    /**
+     * Gets a read-only view of the patients currently in the waiting room,
+     * in the order they were added. The view is kept up to date as patients
+     * are added, called and re-prioritized, so walking it needs no sorting.
+     * @return the patients that have not been called, in arrival order
+     */
+    public Collection<Patient> getArrivalList() {
+        return Collections.unmodifiableCollection(arrivals);
+    }
+
+    /**
+     * Finds the waiting patients whose name starts with a prefix, ignoring
+     * case. Walks only the matching part of the name index, so the cost
+     * depends on the number of matches rather than the queue size.
+     * @param prefix		Start of the name, e.g. "maria g"
+     * @return				Matching patients, sorted by name then arrival
+     */
+    public ArrayList<Patient> findByName(String prefix) {
+    	String key = prefix.toLowerCase(Locale.ROOT);
+    	ArrayList<Patient> found = new ArrayList<Patient>();
+    	for(Map.Entry<String, Patient> entry
+    			: names.tailMap(key, true).entrySet()) {
+    		if(!entry.getKey().startsWith(key)) {
+    			break;
+    		}
+    		found.add(entry.getValue());
+    	}
+    	return found;
+    }
+
     /**
      * Adds a patient to the priority queue system.
      * @param priorityCode		Patient's priority code
      * @param patientName		Patient's name	
      */
+    @Override
     public void addPatient(int priorityCode, String patientName) {
+    	long start = stats == null ? 0 : System.nanoTime();
     	Patient patient = new Patient(priorityCode, nextPatientNumber++
     			, patientName);
     	patients.add(patient);
-    	percolateUp(size() - 1);
-    	
+    	arrivals.put(patient);
+    	names.put(nameKey(patient), patient);
+    	version++;
+    	percolateUp(size() - 1, patient);
+    	scheduleAging(patient);
+    	for(int i = 0; i < logs.size(); i++) {
+    		logs.get(i).logAdd(patient);
+    	}
+    	if(stats != null) {
+    		long now = System.nanoTime();
+    		stats.recordArrival(patient, now);
+    		stats.recordLatency(TriageStats.ADD, now - start);
+    	}
+    	publish();
+    }
+
+    /**
+     * Adds several patients at once, numbering them in the order given.
+     * When the batch is at least as large as the queue, the heap is rebuilt
+     * bottom-up (Floyd's heapify) in O(n) instead of sifting each patient
+     * up in O(log n).
+     * @param priorityCodes		Priority codes of the new patients
+     * @param patientNames		Names of the new patients
+     * @param count				Number of entries of the arrays to add
+     */
+    public void addAll(int[] priorityCodes, String[] patientNames, int count) {
+    	Patient[] batch = new Patient[count];
+    	for(int i = 0; i < count; i++) {
+    		batch[i] = new Patient(priorityCodes[i], nextPatientNumber++,
+    				patientNames[i]);
+    	}
+    	insertAll(batch);
+    }
+
+    /**
+     * Moves every patient waiting in another queue into this one, e.g. when
+     * a satellite clinic closes. They keep their order among themselves and
+     * are numbered after this queue's patients, as if they had all just
+     * arrived in their original order. The other queue is left empty and
+     * numbers its next patient 1 again.
+     *
+     * Every moved patient gets a new arrival number and has to be entered
+     * in the arrival, position and name indexes and reach the logs, so
+     * this costs at least O(m) whatever the heap. The heap part costs
+     * O(n + m) when heapifying bottom-up pays off and O(m log(n + m))
+     * otherwise. PairingPatientHeap, which keeps none of these indexes,
+     * melds in constant time.
+     * @param other		Queue to empty into this one
+     * @return			Amount added to the other queue's arrival numbers
+     */
+    public int merge(PatientPriorityQueue other) {
+    	if(other == this) {
+    		throw new IllegalArgumentException(
+    				"Cannot merge a queue into itself");
+    	}
+    	int shift = nextPatientNumber - 1;
+    	Patient[] batch = new Patient[other.size()];
+    	int count = 0;
+    	for(Patient patient : other.arrivals) {
+    		batch[count++] = new Patient(patient.getPriorityCode(),
+    				patient.getArrivalOrder() + shift, patient.getName());
+    	}
+    	int next = nextPatientNumber + other.nextPatientNumber - 1;
+    	other.clear();
+    	other.nextPatientNumber = 1;
+    	insertAll(batch);
+    	reserveArrivalNumbers(next);
+    	return shift;
     }
 
     /**
-     * Views (but does not remove) patient at the top of the priority queue
+     * Inserts numbered patients, heapifying bottom-up (Floyd's heapify) when
+     * they are at least as many as the patients already waiting
+     * @param batch		Patients to insert, in increasing arrival number
+     */
+    private void insertAll(Patient[] batch) {
+    	int count = batch.length;
+    	boolean heapify = count >= size();
+    	patients.ensureCapacity(size() + count);
+    	for(int i = 0; i < count; i++) {
+    		Patient patient = batch[i];
+    		patients.add(patient);
+    		arrivals.put(patient);
+    		names.put(nameKey(patient), patient);
+    		version++;
+    		scheduleAging(patient);
+    		if(stats != null) {
+    			stats.recordArrival(patient, System.nanoTime());
+    		}
+    		if(heapify) {
+    			positions.put(patient.getArrivalOrder(), size() - 1);
+    		} else {
+    			percolateUp(size() - 1, patient);
+    		}
+    	}
+    	if(heapify && size() > 1) {
+    		for(int i = parent(size() - 1); i >= 0; i--) {
+    			percolateDown(i, patients.get(i));
+    		}
+    	}
+    	for(int i = 0; i < logs.size(); i++) {
+    		for(int j = 0; j < count; j++) {
+    			logs.get(i).logAdd(batch[j]);
+    		}
+    	}
+    	publish();
+    }
+
+    /**
+     * Views (but does not remove) patient at the top of the priority queue.
+     * Promotions that are due are applied first, which changes the queue,
+     * so this is only for the thread changing it; other threads should
+     * read getSnapshot().peek() instead.
      * @return		Patient at top of priority queue
+     * @throws NoSuchElementException if no patients are waiting
      */
+    @Override
     public Patient peek() {
+    	applyAging();
+    	if(patients.isEmpty()) {
+    		throw new NoSuchElementException("No patients are waiting");
+    	}
         return patients.get(0);
     }
 
+    /**
+     * Views (but does not remove) the next k patients to be called, in the
+     * order they will be called. A small auxiliary heap holds the frontier
+     * of the main heap: the children of every patient taken so far. Each
+     * step takes the frontier's best and adds its children, so this costs
+     * O(k log k) and leaves the queue as it was.
+     * @param k		Number of patients to view
+     * @return		Up to k patients, in call order
+     */
+    public ArrayList<Patient> peekTop(int k) {
+    	applyAging();
+    	int count = Math.min(Math.max(k, 0), size());
+    	ArrayList<Patient> top = new ArrayList<Patient>(count);
+    	if(count == 0) {
+    		return top;
+    	}
+    	PriorityQueue<Integer> frontier = new PriorityQueue<Integer>(
+    			count * (arity - 1) + 1, (a, b) -> isBefore(patients.get(a),
+    					patients.get(b)) ? -1 : 1);
+    	frontier.add(0);
+    	while(top.size() < count) {
+    		int index = frontier.poll();
+    		top.add(patients.get(index));
+    		int first = firstChild(index);
+    		for(int child = first; child < first + arity
+    				&& child < size(); child++) {
+    			frontier.add(child);
+    		}
+    	}
+    	return top;
+    }
+
     /**
      * Removes the patient at the top of the priority queue
      * @return		Patient at top of priority queue
      */
+    @Override
     public Patient dequeue() {
+    	long start = stats == null ? 0 : System.nanoTime();
     	Patient dequeued = peek();
-    	patients.set(0, patients.get(size() - 1));
-    	patients.remove(size() - 1);
-    	percolateDown(0);
+    	Patient last = patients.remove(size() - 1);
+    	positions.remove(dequeued.getArrivalOrder());
+    	arrivals.delete(dequeued.getArrivalOrder());
+    	names.remove(nameKey(dequeued));
+    	version++;
+    	if(size() > 0) {
+    		percolateDown(0, last);
+    	}
+    	for(int i = 0; i < logs.size(); i++) {
+    		logs.get(i).logDequeue(dequeued);
+    	}
+    	if(stats != null) {
+    		long now = System.nanoTime();
+    		stats.recordCall(dequeued, now);
+    		stats.recordLatency(TriageStats.DEQUEUE, now - start);
+    	}
+    	publish();
         return dequeued;
     }
 
+    /**
+     * Removes up to n patients from the top of the priority queue
+     * @param n		Maximum number of patients to remove
+     * @return		Removed patients, in the order they were called
+     */
+    public ArrayList<Patient> dequeue(int n) {
+    	ArrayList<Patient> called = new ArrayList<Patient>(Math.min(
+    			Math.max(n, 0), size()));
+    	drainTo(called, n);
+    	return called;
+    }
+
+    /**
+     * Removes up to max patients from the top of the priority queue and adds
+     * them to a collection, in the order they were called
+     * @param target	Collection to add the removed patients to
+     * @param max		Maximum number of patients to remove
+     * @return			Number of patients removed
+     */
+    public int drainTo(Collection<? super Patient> target, int max) {
+    	int count = 0;
+    	while(count < max && size() > 0) {
+    		target.add(dequeue());
+    		count++;
+    	}
+    	return count;
+    }
+
     /**
      * Finds number of patients in the priority queue
      * @return		Number of patients in the priority queue
      */
+    @Override
     public int size() {
         return patients.size();
     }
@@ -81,10 +417,263 @@ public class PatientPriorityQueue {
      * @param priorityCode		Priority to change to
      */
     public void changePri(int patientIndex, int priorityCode) {
+    	long start = stats == null ? 0 : System.nanoTime();
+    	replacePriority(patientIndex, priorityCode,
+    			clock.getAsLong() + agingMillis);
+    	if(stats != null) {
+    		stats.recordLatency(TriageStats.CHANGE, System.nanoTime() - start);
+    	}
+    	publish();
+    }
+
+    /**
+     * Turns on priority aging: a patient who has waited the given time at
+     * one priority code is promoted to the next higher one, until they
+     * reach immediate. Promotions are checked lazily whenever the top of
+     * the queue is looked at, through a schedule ordered by promotion time,
+     * so each one costs O(log n) and nothing is rescanned on a timer.
+     * Promotions are ordinary priority changes and reach every log.
+     * @param promoteAfterMillis	Wait before each promotion, 0 turns
+     *								aging off
+     * @param clock					Current time in milliseconds
+     */
+    public void setAgingPolicy(long promoteAfterMillis, LongSupplier clock) {
+    	this.agingMillis = promoteAfterMillis;
+    	this.clock = clock;
+    	agingSchedule.clear();
+    	for(int i = 0; i < size(); i++) {
+    		scheduleAging(patients.get(i));
+    	}
+    }
+
+    /**
+     * Replaces a patient's record with one at a new priority code
+     * @param patientIndex		Patient to change priority of
+     * @param priorityCode		Priority to change to
+     * @param agingDue			When the new record is due for promotion
+     */
+    private void replacePriority(int patientIndex, int priorityCode,
+    		long agingDue) {
     	Patient copy = new Patient(priorityCode,patients.get(patientIndex)
     			.getArrivalOrder(),patients.get(patientIndex).getName());
-    	patients.set(patientIndex, copy);
-    	changePercolate(patientIndex);
+    	if(stats != null) {
+    		stats.recordMove(patients.get(patientIndex).getPriorityCode(),
+    				priorityCode);
+    	}
+    	arrivals.put(copy);
+    	names.put(nameKey(copy), copy);
+    	version++;
+    	changePercolate(patientIndex, copy);
+    	if(agingMillis > 0 && priorityCode > 1) {
+    		agingSchedule.add(new AgingEntry(copy, agingDue));
+    	}
+    	for(int i = 0; i < logs.size(); i++) {
+    		logs.get(i).logChange(copy);
+    	}
+    }
+
+    /**
+     * Schedules the promotion of a patient record that just entered the
+     * queue, if aging is on
+     * @param patient		Patient record to schedule
+     */
+    private void scheduleAging(Patient patient) {
+    	if(agingMillis > 0 && patient.getPriorityCode() > 1) {
+    		agingSchedule.add(new AgingEntry(patient,
+    				clock.getAsLong() + agingMillis));
+    	}
+    }
+
+    /**
+     * Promotes every patient whose promotion is due. Entries whose record
+     * was called or replaced since they were scheduled are dropped.
+     */
+    private void applyAging() {
+    	if(agingMillis == 0) {
+    		return;
+    	}
+    	long now = clock.getAsLong();
+    	while(!agingSchedule.isEmpty() && agingSchedule.peek().due <= now) {
+    		AgingEntry entry = agingSchedule.poll();
+    		int index = indexOf(entry.patient.getArrivalOrder());
+    		if(index != -1 && patients.get(index) == entry.patient) {
+    			replacePriority(index, entry.patient.getPriorityCode() - 1,
+    					entry.due + agingMillis);
+    		}
+    	}
+    	publish();
+    }
+
+    /**
+     * Starts recording latencies, queue depth and wait times. Patients
+     * already waiting are counted in the depth but have no wait time.
+     * @param stats		Statistics to record into, null to stop recording
+     */
+    public void setStats(TriageStats stats) {
+    	this.stats = stats;
+    	for(int i = 0; stats != null && i < size(); i++) {
+    		stats.recordMove(0, patients.get(i).getPriorityCode());
+    	}
+    }
+
+    /**
+     * Statistics being recorded
+     * @return		Statistics, null if not recording
+     */
+    public TriageStats getStats() {
+    	return stats;
+    }
+
+    /**
+     * Registers a log that is told about every later change to the queue
+     * @param log		Log to notify
+     */
+    public void addOperationLog(OperationLog log) {
+    	logs.add(log);
+    }
+
+    /**
+     * Stops notifying a log about changes to the queue
+     * @param log		Log to stop notifying
+     */
+    public void removeOperationLog(OperationLog log) {
+    	logs.remove(log);
+    }
+
+    /**
+     * Arrival number the next added patient will get
+     * @return		Next arrival number
+     */
+    public int getNextPatientNumber() {
+    	return nextPatientNumber;
+    }
+
+    /**
+     * Skips arrival numbers that were already used elsewhere, e.g. by a
+     * replicated primary for patients that have since been called. Logs
+     * are told, so that the numbers stay skipped after recovery.
+     * @param next		Lowest arrival number later patients may get
+     */
+    public void reserveArrivalNumbers(int next) {
+    	if(next > nextPatientNumber) {
+    		nextPatientNumber = next;
+    		for(int i = 0; i < logs.size(); i++) {
+    			logs.get(i).logNumber(next);
+    		}
+    	}
+    }
+
+    /**
+     * Finds where a patient currently sits in the priority queue
+     * @param arrivalOrder		Arrival number of the patient to find
+     * @return					Index of patient if found, -1 if not found
+     */
+    public int indexOf(int arrivalOrder) {
+    	Integer index = positions.get(arrivalOrder);
+    	return index == null ? -1 : index;
+    }
+
+    /**
+     * Changes priority of the patient with the given arrival number
+     * @param arrivalOrder		Arrival number of the patient to change
+     * @param priorityCode		Priority to change to
+     * @return					True if patient was found, false otherwise
+     */
+    @Override
+    public boolean changePriorityById(int arrivalOrder, int priorityCode) {
+    	int index = indexOf(arrivalOrder);
+    	if(index == -1) {
+    		return false;
+    	}
+    	changePri(index, priorityCode);
+    	return true;
+    }
+
+    /**
+     * Removes a patient who leaves without being seen or is transferred.
+     * The last heap entry takes the patient's place and is sifted up or
+     * down, so this costs O(log n) and leaves nothing behind to skip later.
+     * @param arrivalOrder		Arrival number of the patient who left
+     * @return					Patient removed, null if not waiting
+     */
+    public Patient removeById(int arrivalOrder) {
+    	int index = indexOf(arrivalOrder);
+    	if(index == -1) {
+    		return null;
+    	}
+    	Patient removed = patients.get(index);
+    	Patient last = patients.remove(size() - 1);
+    	forget(removed);
+    	if(index < size()) {
+    		changePercolate(index, last);
+    	}
+    	for(int i = 0; i < logs.size(); i++) {
+    		logs.get(i).logRemove(removed);
+    	}
+    	publish();
+    	return removed;
+    }
+
+    /**
+     * Removes several patients at once, e.g. a bus transferred elsewhere.
+     * When removing them one by one would cost more than rebuilding the
+     * heap, the remaining patients are compacted in place and heapified
+     * bottom-up in O(n) instead.
+     * @param arrivalOrders		Arrival numbers of the patients who left
+     * @return					Patients removed, skipping ones not waiting
+     */
+    public ArrayList<Patient> removeAllById(int[] arrivalOrders) {
+    	ArrayList<Patient> removed = new ArrayList<Patient>();
+    	int log2 = 32 - Integer.numberOfLeadingZeros(size());
+    	if((long) arrivalOrders.length * log2 <= size()) {
+    		for(int i = 0; i < arrivalOrders.length; i++) {
+    			Patient patient = removeById(arrivalOrders[i]);
+    			if(patient != null) {
+    				removed.add(patient);
+    			}
+    		}
+    		return removed;
+    	}
+    	for(int i = 0; i < arrivalOrders.length; i++) {
+    		int index = indexOf(arrivalOrders[i]);
+    		if(index != -1) {
+    			Patient patient = patients.get(index);
+    			patients.set(index, null);
+    			forget(patient);
+    			removed.add(patient);
+    		}
+    	}
+    	int kept = 0;
+    	for(int i = 0; i < patients.size(); i++) {
+    		if(patients.get(i) != null) {
+    			place(kept++, patients.get(i));
+    		}
+    	}
+    	patients.subList(kept, patients.size()).clear();
+    	for(int i = size() > 1 ? parent(size() - 1) : -1; i >= 0; i--) {
+    		percolateDown(i, patients.get(i));
+    	}
+    	for(int i = 0; i < logs.size(); i++) {
+    		for(int j = 0; j < removed.size(); j++) {
+    			logs.get(i).logRemove(removed.get(j));
+    		}
+    	}
+    	publish();
+    	return removed;
+    }
+
+    /**
+     * Drops a patient who left from the indexes, but not from the heap
+     * @param patient		Patient who left
+     */
+    private void forget(Patient patient) {
+    	positions.remove(patient.getArrivalOrder());
+    	arrivals.delete(patient.getArrivalOrder());
+    	names.remove(nameKey(patient));
+    	version++;
+    	if(stats != null) {
+    		stats.recordLeave(patient);
+    	}
     }
     
     /**
@@ -93,36 +682,197 @@ public class PatientPriorityQueue {
      * @throws IOException
      */
     public void saveFile(String fileName) throws IOException {
-        PrintWriter printWriter = new PrintWriter(fileName);
-        ArrayList<Patient> sortedByArrival = new ArrayList<Patient>();
-        for(int i = 0; i < patients.size(); i++) {
-        	sortedByArrival.add(patients.get(i));
+        long start = stats == null ? 0 : System.nanoTime();
+        writeCommands(arrivals, fileName);
+        if(stats != null) {
+        	stats.recordLatency(TriageStats.SAVE, System.nanoTime() - start);
         }
-        for (int i = 0; i < sortedByArrival.size() - 1; i++) {
-            for (int j = 0; j < sortedByArrival.size() - i - 1; j++) {
-                if (sortedByArrival.get(j).getArrivalOrder() > 
-                	sortedByArrival.get(j + 1).getArrivalOrder()) { 
-                    Patient temp = sortedByArrival.get(j); 
-                    sortedByArrival.set(j, sortedByArrival.get(j+1));
-                    sortedByArrival.set(j + 1, temp);
-                } 
-            }
+    }
+
+    /**
+     * Writes an `add` command for each patient, in the order given
+     * @param waiting		Patients to write
+     * @param fileName		File name provided by user
+     * @throws IOException
+     */
+    static void writeCommands(Iterable<Patient> waiting, String fileName)
+    		throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(Paths.get(fileName),
+        		StandardCharsets.UTF_8);
+        try {
+        	for(Patient patient : waiting) {
+        		writer.write("add ");
+        		writer.write(getPriorityString(patient.getPriorityCode()));
+        		writer.write(' ');
+        		writer.write(patient.getName());
+        		writer.newLine();
+        	}
+        } finally {
+        	writer.close();
+        }
+    }
+
+    /**
+     * Stores the priority queue in a compact binary snapshot. Unlike
+     * saveFile, the snapshot keeps each patient's arrival number.
+     * Layout: magic, next arrival number, patient count, then one record
+     * per patient of priority, arrival number, name length and UTF-8 name.
+     * @param fileName		File name provided by user
+     * @throws IOException
+     */
+    public void saveBinary(String fileName) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        		new FileOutputStream(fileName)));
+        try {
+        	out.writeInt(SNAPSHOT_MAGIC);
+        	out.writeInt(nextPatientNumber);
+        	out.writeInt(size());
+        	for(Patient patient : arrivals) {
+        		byte[] name = patient.getName().getBytes(StandardCharsets.UTF_8);
+        		out.writeInt(patient.getPriorityCode());
+        		out.writeInt(patient.getArrivalOrder());
+        		out.writeInt(name.length);
+        		out.write(name);
+        	}
+        } finally {
+        	out.close();
         }
-        for(int i = 0; i < sortedByArrival.size(); i++) {
-        	printWriter.println("add " + getPriorityString(sortedByArrival
-        			.get(i).getPriorityCode()) + " " + 
-        			sortedByArrival.get(i).getName());
+    }
+
+    /**
+     * Replaces the patients in the priority queue with those of a binary
+     * snapshot written by saveBinary. The whole file is read and checked
+     * first, so a truncated or corrupt snapshot leaves the queue as it was.
+     * @param fileName		File name provided by user
+     * @throws IOException if the file cannot be read or is not a valid
+     *					   snapshot
+     */
+    public void loadBinary(String fileName) throws IOException {
+        ArrayList<Patient> loaded = new ArrayList<Patient>();
+        int next;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+        		new FileInputStream(fileName)));
+        try {
+        	if(in.readInt() != SNAPSHOT_MAGIC) {
+        		throw new IOException(fileName + " is not a triage snapshot");
+        	}
+        	next = in.readInt();
+        	int count = in.readInt();
+        	if(count < 0) {
+        		throw new IOException(fileName + " is corrupt: "
+        				+ count + " patients");
+        	}
+        	int previous = 0;
+        	for(int i = 0; i < count; i++) {
+        		int priorityCode = in.readInt();
+        		int arrivalOrder = in.readInt();
+        		int length = in.readInt();
+        		// patients are saved in increasing arrival number
+        		if(priorityCode < 1 || priorityCode > 4
+        				|| arrivalOrder <= previous || length < 0
+        				|| length > in.available()) {
+        			throw new IOException(fileName + " is corrupt at patient "
+        					+ (i + 1) + " of " + count);
+        		}
+        		byte[] name = new byte[length];
+        		in.readFully(name);
+        		loaded.add(new Patient(priorityCode, arrivalOrder,
+        				new String(name, StandardCharsets.UTF_8)));
+        		previous = arrivalOrder;
+        	}
+        	next = Math.max(next, previous + 1);
+        } catch(EOFException e) {
+        	throw new IOException(fileName + " is truncated");
+        } finally {
+        	in.close();
         }
-        printWriter.close();
+        empty();
+        insertAll(loaded.toArray(new Patient[0]));
+        reserveArrivalNumbers(next);
+    }
+
+    /**
+     * Adds a patient that already has an arrival number, e.g. one restored
+     * from a snapshot. Later patients are numbered after it. Restore
+     * patients in increasing arrival number to keep getArrivalList sorted.
+     * @param priorityCode		Patient's priority code
+     * @param arrivalOrder		Patient's arrival number
+     * @param patientName		Patient's name
+     */
+    public void restorePatient(int priorityCode, int arrivalOrder,
+    		String patientName) {
+    	if(arrivalOrder < 1) {
+    		throw new IllegalArgumentException("Arrival number "
+    				+ arrivalOrder + " is not positive");
+    	}
+    	if(positions.containsKey(arrivalOrder)) {
+    		throw new IllegalArgumentException("Arrival number "
+    				+ arrivalOrder + " is already waiting");
+    	}
+    	Patient patient = new Patient(priorityCode, arrivalOrder, patientName);
+    	patients.add(patient);
+    	arrivals.put(patient);
+    	names.put(nameKey(patient), patient);
+    	version++;
+    	percolateUp(size() - 1, patient);
+    	scheduleAging(patient);
+    	nextPatientNumber = Math.max(nextPatientNumber, arrivalOrder + 1);
+    	for(int i = 0; i < logs.size(); i++) {
+    		logs.get(i).logAdd(patient);
+    	}
+    	if(stats != null) {
+    		stats.recordArrival(patient, System.nanoTime());
+    	}
+    	publish();
+    }
 
+    /**
+     * Removes every patient from the priority queue. Arrival numbers keep
+     * counting from where they were.
+     */
+    public void clear() {
+    	empty();
+    	publish();
     }
-    
+
+    /**
+     * Removes every patient without publishing a view of the empty queue,
+     * e.g. when it is refilled right away
+     */
+    private void empty() {
+    	patients.clear();
+    	positions.clear();
+    	arrivals.clear();
+    	names.clear();
+    	version++;
+    	agingSchedule.clear();
+    	if(stats != null) {
+    		stats.recordClear();
+    	}
+    	for(int i = 0; i < logs.size(); i++) {
+    		logs.get(i).logClear();
+    	}
+    }
+
+    /**
+     * Builds a patient's key in the name index: the lower-cased name, then
+     * the zero-padded arrival number so that namesakes are kept apart and
+     * sorted by arrival
+     * @param patient		Patient to build the key of
+     * @return				Key in names
+     */
+    private static String nameKey(Patient patient) {
+    	String arrival = Integer.toString(patient.getArrivalOrder());
+    	return patient.getName().toLowerCase(Locale.ROOT) + '\0'
+    			+ "0000000000".substring(arrival.length()) + arrival;
+    }
+
     /**
      * Takes integer priority code and turns it into string representation
      * @param priorityCode		Priority code to change
      * @return					String representation of priority code
      */
-    private String getPriorityString(int priorityCode) {
+    private static String getPriorityString(int priorityCode) {
     	if(priorityCode == 1) {
     		return "immediate";
     	} else if(priorityCode == 2) {
@@ -138,114 +888,125 @@ public class PatientPriorityQueue {
      * Decides if a patient should be percolated up or down in the queue
      * Then percolates them up / down if necessary
      * @param index		Index of the patient in question
+     * @param patient	Patient to place, replacing the one at index
      */
-    private void changePercolate(int index) {
-    	if(patients.get(parent(index)).getPriorityCode() >= patients.get(index)
-    			.getPriorityCode() && index != 0) {
-    		Patient temp = patients.get(parent(index));
-    		patients.set(parent(index), patients.get(index));
-    		patients.set(index, temp);
-    		changePercolate(parent(index));
-    	} else { 
-    		int min = index;
-    		if(hasLeft(index) && patients.get(left(index))
-    				.getPriorityCode() < patients.get(min).getPriorityCode()) {
-    			min = left(index);
-    		}
-    		if(hasRight(index) && patients.get(right(index))
-    				.getPriorityCode() < patients.get(min).getPriorityCode()) {
-    			min = right(index);
-    		}
-    		if(index != min) {
-    			Patient temp = patients.get(index);
-    			patients.set(index, patients.get(min));
-    			patients.set(min, temp);
-    			changePercolate(min);
-    		}
+    private void changePercolate(int index, Patient patient) {
+    	if(index > 0 && isBefore(patient, patients.get(parent(index)))) {
+    		percolateUp(index, patient);
+    	} else {
+    		percolateDown(index, patient);
     	}
     }
 
     /**
-     * Finds if an index has a left child
-     * @param parentIndex		Index to find out if there is left child of
-     * @return					True if left child exists, false otherwise
+     * Decides which of two patients should be seen first
+     * @param a		First patient
+     * @param b		Second patient
+     * @return		True if a has higher priority, or the same priority and
+     *				arrived earlier
      */
-    private boolean hasLeft(int parentIndex) {
-    	return left(parentIndex) < size();
+    private boolean isBefore(Patient a, Patient b) {
+    	if(a.getPriorityCode() != b.getPriorityCode()) {
+    		return a.getPriorityCode() < b.getPriorityCode();
+    	}
+    	return a.getArrivalOrder() < b.getArrivalOrder();
     }
 
     /**
-     * Finds if an index has a right child
-     * @param parentIndex		Index to find out if there is a right child of
-     * @return					True if right child exists, false otherwise
+     * Finds the index of the first child
+     * @param parentIndex		Index to find first child of
+     * @return					Index of first child
      */
-    private boolean hasRight(int parentIndex) {
-        return right(parentIndex) < size();
+    private int firstChild(int parentIndex) {
+        return arity * parentIndex + 1;
     }
 
     /**
-     * Finds the index of the left child
-     * @param parentIndex		Index to find left child of
-     * @return					Index of left child
+     * Finds the parent index of a child
+     * @param childIndex		Index to find parent of
+     * @return					Index of parent
      */
-    private int left(int parentIndex) {
-        return 2 * parentIndex + 1;
+    private int parent(int childIndex) {
+        return (childIndex - 1) / arity;
     }
 
     /**
-     * Finds the index of the right child
-     * @param parentIndex		Index to find right child of
-     * @return					Index of right child
+     * Stores a patient in a heap slot and keeps the arrival index up to date
+     * @param index		Index of the heap slot
+     * @param patient	Patient to store
      */
-    private int right(int parentIndex) {
-        return 2 * parentIndex + 2;
+    private void place(int index, Patient patient) {
+    	patients.set(index, patient);
+    	positions.put(patient.getArrivalOrder(), index);
     }
 
     /**
-     * Finds the parent index of a child
-     * @param childIndex		Index to find parent of
-     * @return					Index of parent
+     * Brings higher priority patients to the top of the queue. Parents are
+     * moved down into the hole until the patient fits.
+     * @param index		Index of the hole to start from
+     * @param patient	Patient to place
      */
-    private int parent(int childIndex) {
-        return (childIndex - 1) / 2;
+    private void percolateUp(int index, Patient patient) {
+    	while(index > 0) {
+    		int parentIndex = parent(index);
+    		Patient parent = patients.get(parentIndex);
+    		if(!isBefore(patient, parent)) {
+    			break;
+    		}
+    		place(index, parent);
+    		index = parentIndex;
+    	}
+    	place(index, patient);
     }
 
     /**
-     * Brings higher priority patients to the top of the queue
-     * @param index		Index of the patient to check
+     * Moves lower priority patients to the bottom of the queue. The best
+     * child is moved up into the hole until the patient fits.
+     * @param index		Index of the hole to start from
+     * @param patient	Patient to place
      */
-    private void percolateUp(int index) {
-    	if(patients.get(parent(index)).getPriorityCode() > patients.get(index)
-    			.getPriorityCode()) {
-    		Patient temp = patients.get(parent(index));
-    		patients.set(parent(index), patients.get(index));
-    		patients.set(index, temp);
-    		percolateUp(parent(index));
+    private void percolateDown(int index, Patient patient) {
+    	int first = firstChild(index);
+    	while(first < size()) {
+    		int end = Math.min(first + arity, size());
+    		int min = first;
+    		for(int child = first + 1; child < end; child++) {
+    			if(isBefore(patients.get(child), patients.get(min))) {
+    				min = child;
+    			}
+    		}
+    		Patient best = patients.get(min);
+    		if(!isBefore(best, patient)) {
+    			break;
+    		}
+    		place(index, best);
+    		index = min;
+    		first = firstChild(index);
     	}
+    	place(index, patient);
     }
 
     /**
-     * Moves lower priority patients to the bottom of the queue
-     * @param index		Index of the patient to check
+     * A patient record waiting for its next aging promotion.
      */
-    private void percolateDown(int index) {
-    	if(index < size()) {
-    		int min = index;
-    		if(hasLeft(index) && patients.get(left(index))
-    				.getPriorityCode() < patients.get(min).getPriorityCode()) {
-    			min = left(index);
-    		}
-    		if(hasRight(index) && patients.get(right(index))
-    				.getPriorityCode() < patients.get(min).getPriorityCode()) {
-    			min = right(index);
-    		}
-    		if(index != min) {
-    			Patient temp = patients.get(index);
-    			patients.set(index, patients.get(min));
-    			patients.set(min, temp);
-    			percolateDown(min);
-    		}
-    	}
+    private static class AgingEntry implements Comparable<AgingEntry> {
+        private Patient patient;    // record to promote, if still current
+        private long due;           // promotion time in milliseconds
+
+        /**
+         * Creates a schedule entry
+         * @param patient		Record to promote
+         * @param due			Promotion time in milliseconds
+         */
+        AgingEntry(Patient patient, long due) {
+            this.patient = patient;
+            this.due = due;
+        }
+
+        @Override
+        public int compareTo(AgingEntry other) {
+            return Long.compare(due, other.due);
+        }
     }
-    
+
 }
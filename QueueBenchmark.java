@@ -0,0 +1,276 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Micro-benchmark for the triage queue implementations. Every operation is
+ * measured on queues of 10 to 1,000,000 patients under a uniform and a
+ * skewed priority mix, after a few warm-up rounds. Reports throughput,
+ * average latency and bytes allocated per operation.
+ *
+ * This is a quick smoke test that runs without a build. Numbers meant to
+ * back a performance change come from the JMH benchmarks in jmh/, which
+ * fork, use blackholes and keep the queue size fixed while measuring.
+ *
+ * Usage: java rwang_P2X.QueueBenchmark [maxQueueSize]
+ * @author Ruifeng Wang
+ */
+public class QueueBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int OPS_PER_ROUND = 10000;
+    private static final int PEEKS_PER_ROUND = 100000;
+    private static final String[] NAMES = {"Maria Gonzalez", "John Smith",
+            "Wei Chen", "Aisha Khan", "Olga Petrova", "Kenji Sato"};
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            ManagementFactory.getThreadMXBean()
+            instanceof com.sun.management.ThreadMXBean
+            ? (com.sun.management.ThreadMXBean)
+              ManagementFactory.getThreadMXBean() : null;
+
+    private static Random random;   // drives priorities and change targets
+    private static long sink;       // keeps results alive for the JIT
+
+    /**
+     * Entry point of the benchmark
+     * @param args optional largest queue size to measure
+     * @throws IOException if the saveFile benchmark cannot write
+     */
+    public static void main(String[] args) throws IOException {
+        int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.printf("%-22s %9s %-9s %14s %12s %10s%n", "queue / mix",
+                "size", "op", "ops/s", "ns/op", "B/op");
+        for (int size = 10; size <= maxSize; size *= 10) {
+            for (boolean skewed : new boolean[] {false, true}) {
+                for (String kind : new String[] {"heap", "heap-4ary",
+                        "bucket", "packed", "offheap", "pairing",
+                        "concurrent"}) {
+                    benchmarkQueue(kind, size, skewed);
+                }
+            }
+        }
+        System.out.println("checksum " + sink);
+    }
+
+    /**
+     * Creates an empty queue of the requested kind. Also used by the JMH
+     * benchmarks.
+     * @param kind		Implementation name
+     * @return			Empty queue
+     */
+    static TriageQueue newQueue(String kind) {
+        if (kind.equals("heap")) {
+            return new PatientPriorityQueue();
+        } else if (kind.equals("heap-4ary")) {
+            return new PatientPriorityQueue(4);
+        } else if (kind.equals("bucket")) {
+            return new BucketPatientQueue();
+        } else if (kind.equals("packed")) {
+            return new PackedPatientHeap();
+        } else if (kind.equals("offheap")) {
+            return new OffHeapPatientQueue();
+        } else if (kind.equals("pairing")) {
+            return new PairingPatientHeap();
+        } else {
+            return new ConcurrentPatientQueue();
+        }
+    }
+
+    /**
+     * Runs every operation against one queue kind, size and priority mix
+     * @param kind		Implementation name
+     * @param size		Number of patients waiting while measuring
+     * @param skewed	True for a mostly low-acuity mix, false for uniform
+     * @throws IOException if the saveFile benchmark cannot write
+     */
+    private static void benchmarkQueue(String kind, int size, boolean skewed)
+            throws IOException {
+        random = new Random(size);
+        TriageQueue queue = newQueue(kind);
+        fill(queue, size, skewed);
+        String label = kind + (skewed ? " skewed" : " uniform");
+        int ops = Math.min(size, OPS_PER_ROUND);
+
+        report(label, size, "add", ops, measure(queue, "add", ops, skewed));
+        report(label, size, "dequeue", ops,
+                measure(queue, "dequeue", ops, skewed));
+        report(label, size, "peek", PEEKS_PER_ROUND,
+                measure(queue, "peek", PEEKS_PER_ROUND, skewed));
+        report(label, size, "changePri", ops,
+                measure(queue, "changePri", ops, skewed));
+        report(label, size, "list", 1, measure(queue, "list", 1, skewed));
+        if (queue instanceof PatientPriorityQueue) {
+            report(label, size, "saveFile", 1,
+                    measure(queue, "saveFile", 1, skewed));
+        }
+    }
+
+    /**
+     * Runs warm-up rounds and then measured rounds of one operation
+     * @param queue		Queue to operate on, restored to its size after
+     *					every round
+     * @param op		Operation name
+     * @param ops		Operations per round
+     * @param skewed	Priority mix used for new patients
+     * @return			Total {nanoseconds, bytes} of the measured rounds
+     * @throws IOException if the saveFile benchmark cannot write
+     */
+    private static long[] measure(TriageQueue queue, String op, int ops,
+            boolean skewed) throws IOException {
+        long[] total = new long[2];
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            int[] ids = op.equals("changePri") ? waitingIds(queue, ops) : null;
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            runOp(queue, op, ops, skewed, ids);
+            long elapsed = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+            if (round >= WARMUP_ROUNDS) {
+                total[0] += elapsed;
+                total[1] += bytes;
+            }
+            if (op.equals("add")) {
+                for (int i = 0; i < ops; i++) {
+                    queue.dequeue();
+                }
+            } else if (op.equals("dequeue")) {
+                fill(queue, ops, skewed);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Performs the timed part of one round
+     * @param queue		Queue to operate on
+     * @param op		Operation name
+     * @param ops		Number of operations
+     * @param skewed	Priority mix used for new patients
+     * @param ids		Arrival numbers to re-prioritize, for changePri
+     * @throws IOException if the saveFile benchmark cannot write
+     */
+    private static void runOp(TriageQueue queue, String op, int ops,
+            boolean skewed, int[] ids) throws IOException {
+        if (op.equals("add")) {
+            fill(queue, ops, skewed);
+        } else if (op.equals("dequeue")) {
+            for (int i = 0; i < ops; i++) {
+                sink += queue.dequeue().getArrivalOrder();
+            }
+        } else if (op.equals("peek")) {
+            for (int i = 0; i < ops; i++) {
+                sink += queue.peek().getArrivalOrder();
+            }
+        } else if (op.equals("changePri")) {
+            for (int i = 0; i < ids.length; i++) {
+                queue.changePriorityById(ids[i], nextPriority(skewed));
+            }
+        } else if (op.equals("list")) {
+            Collection<Patient> waiting = queue instanceof PatientPriorityQueue
+                    ? ((PatientPriorityQueue) queue).getArrivalList()
+                    : queue.getPatientList();
+            StringBuilder out = new StringBuilder();
+            for (Patient patient : waiting) {
+                out.append(patient.getArrivalOrder()).append(' ')
+                   .append(patient.getPriorityCode()).append(' ')
+                   .append(patient.getName()).append('\n');
+            }
+            sink += out.length();
+        } else {
+            File file = File.createTempFile("triage", ".txt");
+            ((PatientPriorityQueue) queue).saveFile(file.getPath());
+            sink += file.length();
+            file.delete();
+        }
+    }
+
+    /**
+     * Adds patients with randomly drawn priorities
+     * @param queue		Queue to add to
+     * @param count		Number of patients to add
+     * @param skewed	Priority mix to draw from
+     */
+    private static void fill(TriageQueue queue, int count, boolean skewed) {
+        for (int i = 0; i < count; i++) {
+            queue.addPatient(nextPriority(skewed),
+                    NAMES[random.nextInt(NAMES.length)]);
+        }
+    }
+
+    /**
+     * Draws a priority code. The skewed mix is 5% immediate, 15% emergency,
+     * 30% urgent and 50% minimal, roughly what a busy ED sees.
+     * @param skewed	True for the skewed mix, false for uniform
+     * @return			Priority code from 1 to 4
+     */
+    private static int nextPriority(boolean skewed) {
+        return nextPriority(random, skewed);
+    }
+
+    /**
+     * Draws a priority code from either mix. Also used by the JMH
+     * benchmarks.
+     * @param random	Generator to draw from
+     * @param skewed	True for the skewed mix, false for uniform
+     * @return			Priority code from 1 to 4
+     */
+    static int nextPriority(Random random, boolean skewed) {
+        if (!skewed) {
+            return 1 + random.nextInt(4);
+        }
+        int roll = random.nextInt(100);
+        return roll < 5 ? 1 : roll < 20 ? 2 : roll < 50 ? 3 : 4;
+    }
+
+    /**
+     * Picks random arrival numbers of patients that are still waiting
+     * @param queue		Queue to pick from
+     * @param count		Number of arrival numbers to pick
+     * @return			Arrival numbers
+     */
+    private static int[] waitingIds(TriageQueue queue, int count) {
+        List<Patient> waiting = queue.getPatientList();
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = waiting.get(random.nextInt(waiting.size()))
+                    .getArrivalOrder();
+        }
+        return ids;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread
+     * @return		Allocated bytes, 0 if the JVM cannot report them
+     */
+    private static long allocatedBytes() {
+        return THREADS == null ? 0
+                : THREADS.getThreadAllocatedBytes(Thread.currentThread()
+                        .getId());
+    }
+
+    /**
+     * Prints one result line
+     * @param label		Queue kind and priority mix
+     * @param size		Queue size
+     * @param op		Operation name
+     * @param ops		Operations per round
+     * @param total		Total {nanoseconds, bytes} of the measured rounds
+     */
+    private static void report(String label, int size, String op, int ops,
+            long[] total) {
+        double count = (double) ops * MEASURED_ROUNDS;
+        double nanosPerOp = total[0] / count;
+        System.out.printf("%-22s %9d %-9s %14.0f %12.1f %10.1f%n", label,
+                size, op, 1e9 / nanosPerOp, nanosPerOp, total[1] / count);
+    }
+}
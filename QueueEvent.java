@@ -0,0 +1,66 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+/**
+ * A change to the waiting room, as published to dashboards.
+ * @author Ruifeng Wang
+ */
+public class QueueEvent {
+
+    /**
+     * Kind of change.
+     */
+    public enum Type {
+        /** A patient was added. */
+        ADDED,
+        /** A patient was called and left the queue. */
+        CALLED,
+        /** A patient left the queue without being called. */
+        LEFT,
+        /** A patient's priority code changed. */
+        CHANGED,
+        /** Every patient was removed. */
+        CLEARED
+    }
+
+    private Type type;          // kind of change
+    private Patient patient;    // patient after the change, null if CLEARED
+
+    /**
+     * Creates an event.
+     * @param type		Kind of change
+     * @param patient	Patient after the change, null for CLEARED
+     */
+    public QueueEvent(Type type, Patient patient) {
+        this.type = type;
+        this.patient = patient;
+    }
+
+    /**
+     * Kind of change
+     * @return kind of change
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Patient the change applies to, with its priority after the change
+     * @return patient after the change, null for CLEARED
+     */
+    public Patient getPatient() {
+        return patient;
+    }
+
+    /**
+     * String representation of the object. Useful when debugging the program.
+     * @return String representation of the event.
+     */
+    @Override
+    public String toString() {
+        return type + (patient == null ? "" : " " + patient);
+    }
+}
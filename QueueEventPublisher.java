@@ -0,0 +1,388 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes the changes made to a PatientPriorityQueue to any number of
+ * subscribers, such as waiting-room displays. Register it on the queue with
+ * addOperationLog.
+ *
+ * Every subscriber has its own buffer, and events are handed over on the
+ * executor in batches of up to maxBatch, one batch per unit of demand. The
+ * queue's thread only appends to the buffers and never waits, since it
+ * holds the queue's monitor and every other station would wait with it.
+ * The overflow policy decides what a full buffer does. With no
+ * subscribers, publishing costs nothing beyond an empty-list check.
+ * @author Ruifeng Wang
+ */
+public class QueueEventPublisher
+        implements Flow.Publisher<List<QueueEvent>>, OperationLog {
+
+    /**
+     * What to do with an event when a subscriber's buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Discard the new event. */
+        DROP,
+        /**
+         * Keep only the latest pending event of each patient, so the buffer
+         * never has to discard one and holds at most one event per patient
+         * touched since the last delivery. A patient added and then changed
+         * is delivered as added with the new priority; a patient added and
+         * then called or gone is not delivered at all; `clear` discards
+         * every pending event.
+         */
+        CONFLATE,
+        /**
+         * Buffer past the limit, and make the thread that changed the queue
+         * wait in awaitCapacity(), once it has released the queue's monitor,
+         * until the subscriber catches up.
+         */
+        BLOCK
+    }
+
+    private Executor executor;          // runs deliveries to subscribers
+    private int bufferSize;             // events buffered per subscriber,
+                                        // except under CONFLATE
+    private int maxBatch;               // events per onNext call
+    private OverflowPolicy policy;      // what to do when a buffer is full
+    private CopyOnWriteArrayList<EventSubscription> subscriptions;
+
+    /**
+     * Creates a publisher with no subscribers.
+     * @param executor		Runs deliveries to subscribers
+     * @param bufferSize	Events buffered per subscriber before DROP
+     *					discards or BLOCK waits
+     * @param maxBatch		Most events handed over in one onNext call
+     * @param policy		What to do when a subscriber's buffer is full
+     */
+    public QueueEventPublisher(Executor executor, int bufferSize,
+            int maxBatch, OverflowPolicy policy) {
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.maxBatch = maxBatch;
+        this.policy = policy;
+        this.subscriptions = new CopyOnWriteArrayList<EventSubscription>();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<QueueEvent>> subscriber) {
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+    }
+
+    @Override
+    public void logAdd(Patient patient) {
+        publish(QueueEvent.Type.ADDED, patient);
+    }
+
+    @Override
+    public void logDequeue(Patient patient) {
+        publish(QueueEvent.Type.CALLED, patient);
+    }
+
+    @Override
+    public void logRemove(Patient patient) {
+        publish(QueueEvent.Type.LEFT, patient);
+    }
+
+    @Override
+    public void logChange(Patient patient) {
+        publish(QueueEvent.Type.CHANGED, patient);
+    }
+
+    @Override
+    public void logClear() {
+        publish(QueueEvent.Type.CLEARED, null);
+    }
+
+    /**
+     * Completes every subscription once its buffered events are delivered
+     */
+    public void close() {
+        for (EventSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+        subscriptions.clear();
+    }
+
+    /**
+     * What a full buffer does
+     * @return overflow policy
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Waits until every subscriber's buffer is below its limit again. Only
+     * does anything under BLOCK. Must be called without holding the
+     * queue's monitor, or the stations sharing the queue wait as well.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitCapacity() throws InterruptedException {
+        if (policy != OverflowPolicy.BLOCK) {
+            return;
+        }
+        for (EventSubscription subscription : subscriptions) {
+            subscription.awaitCapacity();
+        }
+    }
+
+    /**
+     * Number of events a subscriber lost to the DROP or CONFLATE policy
+     * @return total events dropped across all current subscribers
+     */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (EventSubscription subscription : subscriptions) {
+            dropped += subscription.dropped;
+        }
+        return dropped;
+    }
+
+    /**
+     * Offers an event to every subscriber
+     * @param type		Kind of change
+     * @param patient	Patient after the change, null for CLEARED
+     */
+    private void publish(QueueEvent.Type type, Patient patient) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        QueueEvent event = new QueueEvent(type, patient);
+        for (EventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * One subscriber's buffer and demand. The buffer is guarded by the
+     * subscription's lock; deliveries are serialized by a work-in-progress
+     * counter so at most one drain runs at a time.
+     */
+    private class EventSubscription implements Flow.Subscription {
+        private Flow.Subscriber<? super List<QueueEvent>> subscriber;
+        private ArrayDeque<QueueEvent> buffer;  // not yet delivered, in order
+        private LinkedHashMap<Integer, QueueEvent> latest; // under CONFLATE,
+                                        // by arrival number, 0 for CLEARED
+        private long demand;                    // batches requested
+        private boolean cancelled;              // no more deliveries
+        private boolean completed;              // complete after draining
+        private volatile long dropped;          // events lost to overflow
+        private AtomicInteger pendingDrains;    // drains requested
+
+        /**
+         * Creates the subscription of a subscriber
+         * @param subscriber	Subscriber to deliver to
+         */
+        EventSubscription(Flow.Subscriber<? super List<QueueEvent>>
+                subscriber) {
+            this.subscriber = subscriber;
+            this.buffer = new ArrayDeque<QueueEvent>();
+            this.latest = new LinkedHashMap<Integer, QueueEvent>();
+            this.pendingDrains = new AtomicInteger();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    cancelled = true;
+                    discardBuffer();
+                    notifyAll();
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            if (n <= 0) {
+                subscriptions.remove(this);
+                subscriber.onError(new IllegalArgumentException(
+                        "Subscriber requested " + n + " batches"));
+                return;
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                discardBuffer();
+                notifyAll();
+            }
+            subscriptions.remove(this);
+        }
+
+        /**
+         * Buffers an event, applying the overflow policy. Never waits.
+         * @param event		Event to buffer
+         */
+        void offer(QueueEvent event) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (policy == OverflowPolicy.CONFLATE) {
+                    conflate(event);
+                } else if (policy == OverflowPolicy.DROP
+                        && buffer.size() >= bufferSize) {
+                    dropped++;
+                    return;
+                } else {
+                    buffer.addLast(event);
+                }
+            }
+            scheduleDrain();
+        }
+
+        /**
+         * Merges an event into the latest pending event of its patient
+         * @param event		Event to buffer
+         */
+        private void conflate(QueueEvent event) {
+            if (event.getType() == QueueEvent.Type.CLEARED) {
+                dropped += latest.size();
+                latest.clear();
+                latest.put(0, event);
+                return;
+            }
+            Integer id = event.getPatient().getArrivalOrder();
+            QueueEvent pending = latest.get(id);
+            if (pending == null) {
+                latest.put(id, event);
+                return;
+            }
+            dropped++;
+            if (pending.getType() != QueueEvent.Type.ADDED) {
+                latest.put(id, event);
+            } else if (event.getType() == QueueEvent.Type.CHANGED) {
+                // the subscriber has not seen the patient yet
+                latest.put(id, new QueueEvent(QueueEvent.Type.ADDED,
+                        event.getPatient()));
+            } else if (event.getType() == QueueEvent.Type.ADDED) {
+                latest.put(id, event);
+            } else {
+                // called or gone before the subscriber ever saw them
+                latest.remove(id);
+                dropped++;
+            }
+        }
+
+        /**
+         * Waits until the buffer is below its limit, or the subscription
+         * ends
+         * @throws InterruptedException if interrupted while waiting
+         */
+        synchronized void awaitCapacity() throws InterruptedException {
+            while (!cancelled && buffer.size() >= bufferSize) {
+                wait();
+            }
+        }
+
+        /**
+         * Finds number of events waiting for delivery
+         * @return		Buffered events
+         */
+        private int buffered() {
+            return policy == OverflowPolicy.CONFLATE ? latest.size()
+                    : buffer.size();
+        }
+
+        /**
+         * Takes the oldest event waiting for delivery
+         * @return		Event, which the caller knows is there
+         */
+        private QueueEvent poll() {
+            if (policy != OverflowPolicy.CONFLATE) {
+                return buffer.pollFirst();
+            }
+            Iterator<QueueEvent> first = latest.values().iterator();
+            QueueEvent event = first.next();
+            first.remove();
+            return event;
+        }
+
+        /**
+         * Discards every event waiting for delivery
+         */
+        private void discardBuffer() {
+            buffer.clear();
+            latest.clear();
+        }
+
+        /**
+         * Marks the subscription complete once the buffer is drained
+         */
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            scheduleDrain();
+        }
+
+        /**
+         * Starts a drain on the executor unless one is already running
+         */
+        private void scheduleDrain() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Delivers batches while there is demand and buffered events
+         */
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                while (true) {
+                    List<QueueEvent> batch;
+                    synchronized (this) {
+                        if (cancelled || demand == 0 || buffered() == 0) {
+                            break;
+                        }
+                        int count = Math.min(maxBatch, buffered());
+                        batch = new ArrayList<QueueEvent>(count);
+                        for (int i = 0; i < count; i++) {
+                            batch.add(poll());
+                        }
+                        demand--;
+                        notifyAll();
+                    }
+                    subscriber.onNext(batch);
+                }
+                boolean finish;
+                synchronized (this) {
+                    finish = completed && !cancelled && buffered() == 0;
+                    if (finish) {
+                        cancelled = true;
+                    }
+                }
+                if (finish) {
+                    subscriber.onComplete();
+                }
+                missed = pendingDrains.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of a PatientPriorityQueue as it was at one version. Any
+ * thread may read a snapshot while the queue keeps changing: it holds a
+ * frozen ArrivalTrie, whose nodes the queue copies before changing them,
+ * and Patient itself is immutable.
+ * @author Ruifeng Wang
+ */
+public final class QueueSnapshot {
+    private final long version;         // queue version it was taken at
+    private final long publishedMillis; // when it was taken
+    private final List<Patient> patients; // waiting, in arrival order
+    private final Patient top;          // to be called next, null if empty
+
+    /**
+     * Creates a snapshot
+     * @param version			Version of the queue it shows
+     * @param patients			Frozen trie of the waiting patients
+     * @param top				Patient to be called next, null if empty
+     */
+    QueueSnapshot(long version, ArrivalTrie patients, Patient top) {
+        this.version = version;
+        this.publishedMillis = System.currentTimeMillis();
+        this.patients = Collections.unmodifiableList(patients);
+        this.top = top;
+    }
+
+    /**
+     * Version of the queue the snapshot shows. Every change to the queue
+     * increases its version.
+     * @return		Queue version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * When the snapshot was taken
+     * @return		Time in milliseconds since the epoch
+     */
+    public long getPublishedMillis() {
+        return publishedMillis;
+    }
+
+    /**
+     * Gets the patients that were waiting, in arrival order
+     * @return		Read-only list of patients
+     */
+    public List<Patient> getPatientList() {
+        return patients;
+    }
+
+    /**
+     * Views the patient that was to be called next
+     * @return		Patient at top of the queue, null if nobody was waiting
+     */
+    public Patient peek() {
+        return top;
+    }
+
+    /**
+     * Finds number of patients that were waiting
+     * @return		Number of patients
+     */
+    public int size() {
+        return patients.size();
+    }
+
+    /**
+     * Stores the snapshot as commands that can be loaded again, in the same
+     * format as PatientPriorityQueue.saveFile
+     * @param fileName		File name provided by user
+     * @throws IOException
+     */
+    public void saveFile(String fileName) throws IOException {
+        PatientPriorityQueue.writeCommands(patients, fileName);
+    }
+}
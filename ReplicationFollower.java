@@ -0,0 +1,123 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hot standby for a ReplicationPrimary. Applies the primary's changes to a
+ * local PatientPriorityQueue as they arrive, so promoting it only has to
+ * stop listening: there is no backlog to catch up on.
+ *
+ * Records are applied inside synchronized (queue), like every other change,
+ * so the queue can be read and listed while following. Nothing else may
+ * change the queue until promote() is called. If following stops first,
+ * getFailure() says why, and the command engine reports it to its user.
+ * @author Ruifeng Wang
+ */
+public class ReplicationFollower implements Runnable {
+    private PatientPriorityQueue queue; // local copy of the waiting room
+    private Socket socket;              // connection to the primary
+    private volatile boolean promoted;  // true once promote() was called
+    private volatile long applied;      // records applied so far
+    private volatile String failure;    // why following stopped, or null
+
+    /**
+     * Connects to a primary
+     * @param queue		Queue to apply the primary's changes to
+     * @param host		Host of the primary
+     * @param port		Replication port of the primary
+     * @throws IOException if the primary cannot be reached
+     */
+    public ReplicationFollower(PatientPriorityQueue queue, String host,
+            int port) throws IOException {
+        this.queue = queue;
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Starts applying the primary's changes on a daemon thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Applies records until the primary goes away or promote() is called
+     */
+    @Override
+    public void run() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                synchronized (queue) {
+                    if (promoted) {
+                        return;
+                    }
+                    PatientJournal.applyRecord(queue, line);
+                    applied++;
+                }
+            }
+            failure = "primary closed the connection";
+        } catch (IOException | RuntimeException e) {
+            if (!promoted) {
+                failure = String.valueOf(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops following and makes the local queue writable. Records are
+     * applied whole under the queue's monitor, and none is applied once
+     * this returns.
+     * @return		Number of records applied while following
+     */
+    public long promote() {
+        synchronized (queue) {
+            promoted = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // no longer following either way
+        }
+        return applied;
+    }
+
+    /**
+     * Checks if promote() was called
+     * @return		True if the local queue may be changed
+     */
+    public boolean isPromoted() {
+        return promoted;
+    }
+
+    /**
+     * Finds number of records applied so far
+     * @return		Records applied
+     */
+    public long getAppliedCount() {
+        return applied;
+    }
+
+    /**
+     * Why following stopped before promotion
+     * @return		Reason, null while still following
+     */
+    public String getFailure() {
+        return failure;
+    }
+}
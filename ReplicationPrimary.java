@@ -0,0 +1,313 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Ships every change made to a PatientPriorityQueue to hot-standby
+ * followers over TCP, so a ReplicationFollower can be promoted when the
+ * primary dies.
+ *
+ * A follower that connects is first sent the waiting room as it is, then
+ * each later change in the order it was made. Records use the same text
+ * lines as PatientJournal, including its `number N` line, which the initial
+ * state carries and which follows any change that skips arrival
+ * numbers, so a promoted follower never hands out a number twice.
+ *
+ * The initial state is read while holding the queue's monitor, so every
+ * thread that changes the queue must do so inside synchronized (queue), as
+ * TriageSystem does. Records are sent by a separate thread, so a slow
+ * follower never holds up the triage desk; one that falls too far behind
+ * is dropped and has to reconnect.
+ *
+ * Followers are not authenticated and are sent every patient's name, so
+ * the primary listens on the loopback interface unless it is given another
+ * address.
+ * @author Ruifeng Wang
+ */
+public class ReplicationPrimary implements OperationLog {
+    private static final int MAX_PENDING_CHARS = 16 << 20;
+
+    private PatientPriorityQueue queue;     // queue being replicated
+    private ServerSocket server;            // accepts followers
+    private ArrayList<Follower> followers;  // connected, guarded by this
+    private volatile boolean running;       // false once close() is called
+
+    /**
+     * Starts listening for followers on the loopback interface and
+     * shipping changes to them
+     * @param queue		Queue to replicate
+     * @param port		Port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public ReplicationPrimary(PatientPriorityQueue queue, int port)
+            throws IOException {
+        this(queue, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                port));
+    }
+
+    /**
+     * Starts listening for followers and shipping changes to them
+     * @param queue		Queue to replicate
+     * @param address	Address and port to listen on. Anyone who can reach
+     *					it can read the whole waiting room.
+     * @throws IOException if the address cannot be bound
+     */
+    public ReplicationPrimary(PatientPriorityQueue queue,
+            InetSocketAddress address) throws IOException {
+        this.queue = queue;
+        this.server = new ServerSocket();
+        server.bind(address);
+        this.followers = new ArrayList<Follower>();
+        this.running = true;
+        synchronized (queue) {
+            queue.addOperationLog(this);
+        }
+        startDaemon(this::acceptFollowers, "replication-accept");
+        startDaemon(this::shipRecords, "replication-ship");
+    }
+
+    /**
+     * Port the primary is listening on
+     * @return		Bound port
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Finds number of followers currently connected
+     * @return		Number of followers
+     */
+    public synchronized int getFollowerCount() {
+        return followers.size();
+    }
+
+    @Override
+    public synchronized void logAdd(Patient patient) {
+        if (!followers.isEmpty()) {
+            append("add " + patient.getPriorityCode() + " "
+                    + patient.getArrivalOrder() + " " + patient.getName());
+        }
+    }
+
+    @Override
+    public synchronized void logDequeue(Patient patient) {
+        if (!followers.isEmpty()) {
+            append("next " + patient.getArrivalOrder());
+        }
+    }
+
+    @Override
+    public synchronized void logRemove(Patient patient) {
+        if (!followers.isEmpty()) {
+            append("leave " + patient.getArrivalOrder());
+        }
+    }
+
+    @Override
+    public synchronized void logChange(Patient patient) {
+        if (!followers.isEmpty()) {
+            append("change " + patient.getArrivalOrder() + " "
+                    + patient.getPriorityCode());
+        }
+    }
+
+    @Override
+    public synchronized void logClear() {
+        if (!followers.isEmpty()) {
+            append("clear");
+        }
+    }
+
+    @Override
+    public synchronized void logNumber(int next) {
+        if (!followers.isEmpty()) {
+            append("number " + next);
+        }
+    }
+
+    /**
+     * Stops accepting followers and disconnects the ones connected
+     */
+    public void close() {
+        running = false;
+        synchronized (queue) {
+            queue.removeOperationLog(this);
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            // nobody can connect either way
+        }
+        synchronized (this) {
+            for (int i = 0; i < followers.size(); i++) {
+                followers.get(i).close();
+            }
+            followers.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Queues a record for every follower and wakes the shipping thread
+     * @param record		Record without its newline
+     */
+    private void append(String record) {
+        for (int i = 0; i < followers.size(); i++) {
+            followers.get(i).pending.append(record).append('\n');
+        }
+        notifyAll();
+    }
+
+    /**
+     * Accepts followers until close() is called, queueing the current
+     * waiting room as the first thing each one is sent
+     */
+    private void acceptFollowers() {
+        while (running) {
+            Follower follower;
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                follower = new Follower(socket);
+            } catch (IOException e) {
+                continue;   // closed by close(), or a failed handshake
+            }
+            synchronized (queue) {
+                synchronized (this) {
+                    StringBuilder state = follower.pending;
+                    state.append("clear\n").append("number ")
+                         .append(queue.getNextPatientNumber()).append('\n');
+                    for (Patient patient : queue.getArrivalList()) {
+                        state.append("add ").append(patient.getPriorityCode())
+                             .append(' ').append(patient.getArrivalOrder())
+                             .append(' ').append(patient.getName())
+                             .append('\n');
+                    }
+                    followers.add(follower);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends queued records to the followers until close() is called. The
+     * records are taken out under the lock and written outside it.
+     */
+    private void shipRecords() {
+        ArrayList<Follower> targets = new ArrayList<Follower>();
+        ArrayList<byte[]> batches = new ArrayList<byte[]>();
+        while (running) {
+            synchronized (this) {
+                while (running && !hasPending()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                for (int i = 0; i < followers.size(); i++) {
+                    Follower follower = followers.get(i);
+                    if (follower.pending.length() > 0) {
+                        targets.add(follower);
+                        batches.add(follower.pending.toString()
+                                .getBytes(StandardCharsets.UTF_8));
+                        follower.pending.setLength(0);
+                    }
+                }
+            }
+            for (int i = 0; i < targets.size(); i++) {
+                try {
+                    targets.get(i).output.write(batches.get(i));
+                    targets.get(i).output.flush();
+                } catch (IOException e) {
+                    drop(targets.get(i));
+                }
+            }
+            targets.clear();
+            batches.clear();
+        }
+    }
+
+    /**
+     * Checks if any follower has records waiting to be sent, dropping
+     * followers that have fallen too far behind
+     * @return		True if there is something to send
+     */
+    private boolean hasPending() {
+        boolean pending = false;
+        for (int i = followers.size() - 1; i >= 0; i--) {
+            Follower follower = followers.get(i);
+            if (follower.pending.length() > MAX_PENDING_CHARS) {
+                follower.close();
+                followers.remove(i);
+            } else if (follower.pending.length() > 0) {
+                pending = true;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Disconnects a follower whose connection failed
+     * @param follower		Follower to disconnect
+     */
+    private synchronized void drop(Follower follower) {
+        follower.close();
+        followers.remove(follower);
+    }
+
+    /**
+     * Starts a daemon thread
+     * @param task		What the thread runs
+     * @param name		Name of the thread
+     */
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connection to one follower.
+     */
+    private static class Follower {
+        private Socket socket;          // connection to the follower
+        private OutputStream output;    // written by the shipping thread
+        private StringBuilder pending;  // records not yet taken for sending
+
+        /**
+         * Wraps a follower's connection
+         * @param socket		Accepted connection
+         * @throws IOException if the connection cannot be written
+         */
+        Follower(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = socket.getOutputStream();
+            this.pending = new StringBuilder();
+        }
+
+        /**
+         * Closes the connection
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the follower is gone either way
+            }
+        }
+    }
+}
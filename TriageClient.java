@@ -0,0 +1,124 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small test client for TriageServer. Reads commands from standard input,
+ * sends them all at once (pipelined) and prints the responses. With more
+ * than one connection, every connection sends the same commands at the same
+ * time and only a throughput summary is printed.
+ *
+ * Usage: java rwang_P2X.TriageClient <host> <port> [connections]
+ * @author Ruifeng Wang
+ */
+public class TriageClient {
+
+    /**
+     * Entry point of the client
+     * @param args host, port and optional number of connections
+     * @throws Exception if a connection fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: TriageClient <host> <port> "
+                    + "[connections]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(
+                System.in, StandardCharsets.UTF_8));
+        StringBuilder script = new StringBuilder();
+        int commands = 0;
+        String line;
+        while ((line = stdin.readLine()) != null) {
+            script.append(line).append('\n');
+            commands++;
+        }
+        byte[] request = script.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (connections == 1) {
+            System.out.print(send(host, port, request, commands, true));
+            return;
+        }
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        AtomicLong failures = new AtomicLong();
+        final int expected = commands;
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    send(host, port, request, expected, false);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d connections, %d commands each, %d failed, "
+                + "%.3f s, %.0f commands/s%n", connections, commands,
+                failures.get(), seconds, connections * commands / seconds);
+    }
+
+    /**
+     * Sends a script over one connection and waits for every response
+     * @param host			Server host
+     * @param port			Server port
+     * @param request		Commands, one per line
+     * @param commands		Number of commands in the request
+     * @param keep			True to return the responses, false to drop them
+     * @return				Responses without their "." terminators
+     * @throws IOException if the connection fails
+     */
+    private static String send(String host, int port, byte[] request,
+            int commands, boolean keep) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            // write from another thread so a long script cannot deadlock with
+            // the server waiting for us to read its responses
+            OutputStream out = socket.getOutputStream();
+            Thread writer = new Thread(() -> {
+                try {
+                    out.write(request);
+                    out.flush();
+                } catch (IOException e) {
+                    // the read loop below sees the connection drop
+                }
+            });
+            writer.start();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            StringBuilder responses = new StringBuilder();
+            int received = 0;
+            String line;
+            while (received < commands && (line = in.readLine()) != null) {
+                if (line.equals(".")) {
+                    received++;
+                } else if (keep) {
+                    responses.append(line).append('\n');
+                }
+            }
+            return responses.toString();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.List;
+
+/**
+ * Operations shared by every triage queue implementation, so that the
+ * strategies can be swapped and benchmarked against each other.
+ * @author Ruifeng Wang
+ */
+public interface TriageQueue {
+
+    /**
+     * Adds a patient to the priority queue system.
+     * @param priorityCode		Patient's priority code
+     * @param patientName		Patient's name
+     */
+    void addPatient(int priorityCode, String patientName);
+
+    /**
+     * Views (but does not remove) patient at the top of the priority queue
+     * @return		Patient at top of priority queue
+     * @throws java.util.NoSuchElementException if no patients are waiting
+     */
+    Patient peek();
+
+    /**
+     * Removes the patient at the top of the priority queue
+     * @return		Patient at top of priority queue
+     * @throws java.util.NoSuchElementException if no patients are waiting
+     */
+    Patient dequeue();
+
+    /**
+     * Finds number of patients in the priority queue
+     * @return		Number of patients in the priority queue
+     */
+    int size();
+
+    /**
+     * Changes priority of the patient with the given arrival number
+     * @param arrivalOrder		Arrival number of the patient to change
+     * @param priorityCode		Priority to change to
+     * @return					True if patient was found, false otherwise
+     */
+    boolean changePriorityById(int arrivalOrder, int priorityCode);
+
+    /**
+     * Gets the list of patients currently in the waiting room
+     * @return the list of patients that have not been called
+     */
+    List<Patient> getPatientList();
+}
@@ -0,0 +1,454 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+
+/**
+ * Serves one shared triage queue to many stations over TCP. Each station
+ * sends the same commands it would type at the console, one per line, and
+ * gets back the console output of each command followed by a line holding
+ * a single ".".
+ *
+ * All connections are handled by one selector thread, so the queue is only
+ * ever touched by that thread. Stations may pipeline commands: every
+ * complete line that has arrived is executed, and the responses are sent
+ * back together in one write.
+ *
+ * Stations are not authenticated. The server therefore listens on the
+ * loopback interface unless it is given another address, and stations
+ * cannot run the commands that read or write files on the server: load,
+ * save, savebin, loadbin and stats dump.
+ *
+ * A station that sends `watch` becomes a display instead: from then on it
+ * is sent one line per change to the queue, as published by the server's
+ * QueueEventPublisher, and anything else it sends is ignored. The next
+ * batch of changes is only requested once the last one has been written,
+ * so a slow display is held back by the publisher's overflow policy rather
+ * than by the server buffering for it.
+ * @author Ruifeng Wang
+ */
+public class TriageServer {
+    private static final byte[] END_OF_RESPONSE =
+            ".\n".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_LINE_BYTES = 1 << 20;
+
+    private PatientPriorityQueue priQueue; // queue shared by all stations
+    private PatientJournal journal;        // committed per batch, may be null
+    private ReplicationFollower follower;  // primary followed, or null
+    private Selector selector;             // waits for socket readiness
+    private ServerSocketChannel server;    // accepts station connections
+    private volatile boolean running;      // false once stop() is called
+    private PrintStream log;               // where failed stations are noted
+    private QueueEventPublisher events;    // changes sent to displays, or null
+    private ConcurrentLinkedQueue<SelectionKey> eventsReady; // displays with
+                                           // changes to send
+
+    /**
+     * Creates a server and starts listening for stations on the loopback
+     * interface
+     * @param priQueue		Queue shared by all stations
+     * @param journal		Journal to commit after each batch, or null
+     * @param port			Port to listen on, 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public TriageServer(PatientPriorityQueue priQueue, PatientJournal journal,
+            int port) throws IOException {
+        this(priQueue, journal, new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Creates a server and starts listening for stations
+     * @param priQueue		Queue shared by all stations
+     * @param journal		Journal to commit after each batch, or null
+     * @param address		Address and port to listen on. Anyone who can
+     *						reach it can change the queue.
+     * @throws IOException if the address cannot be bound
+     */
+    public TriageServer(PatientPriorityQueue priQueue, PatientJournal journal,
+            InetSocketAddress address) throws IOException {
+        this.priQueue = priQueue;
+        this.journal = journal;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.running = true;
+        this.log = System.out;
+        this.eventsReady = new ConcurrentLinkedQueue<SelectionKey>();
+    }
+
+    /**
+     * Refuses commands that change the queue, on every station, until the
+     * follower is promoted. Any station may then enter `promote`.
+     * @param follower		Replication the queue follows, or null
+     */
+    void setFollower(ReplicationFollower follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * Lets stations enter `watch` to be sent the changes published by a
+     * publisher registered on the queue. The selector thread both changes
+     * the queue and feeds the displays, so it can never wait for them: a
+     * BLOCK publisher is refused.
+     * @param events		Publisher of the queue's changes
+     */
+    void setEventPublisher(QueueEventPublisher events) {
+        if (events.getPolicy() == QueueEventPublisher.OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException(
+                    "The server cannot wait for displays to catch up");
+        }
+        this.events = events;
+    }
+
+    /**
+     * Sets where the server notes stations it had to disconnect because a
+     * command failed unexpectedly
+     * @param log		Stream to write to, System.out by default
+     */
+    void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Port the server is listening on
+     * @return		Bound port
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Handles stations until stop() is called. A station whose connection
+     * fails, or whose command fails with an unexpected exception, is
+     * disconnected; the others are still served.
+     * @throws IOException if the selector fails
+     */
+    public void run() throws IOException {
+        while (running) {
+            selector.select();
+            SelectionKey display;
+            while ((display = eventsReady.poll()) != null) {
+                try {
+                    sendEvents(display);
+                } catch (IOException e) {
+                    closeStation(display);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                } catch (IOException e) {
+                    closeStation(key);
+                } catch (RuntimeException e) {
+                    log.println("Error serving station " + describe(key)
+                            + ": " + e);
+                    closeStation(key);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                close(key);
+            } else {
+                key.channel().close();
+            }
+        }
+        selector.close();
+    }
+
+    /**
+     * Asks the server loop to finish and close every connection
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Accepts a new station
+     * @throws IOException if the connection cannot be set up
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ,
+                new Connection(priQueue, follower));
+    }
+
+    /**
+     * Reads what a station sent and executes every complete line
+     * @param key		Key of the station's connection
+     * @throws IOException if the connection fails
+     */
+    private void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(conn.input) < 0) {
+            close(key);
+            return;
+        }
+        ByteBuffer input = conn.input;
+        input.flip();
+        byte[] bytes = input.array();
+        int lineStart = input.position();
+        for (int i = lineStart; i < input.limit() && !conn.closing; i++) {
+            if (bytes[i] == '\n') {
+                int end = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(bytes, lineStart, end - lineStart,
+                        StandardCharsets.UTF_8);
+                lineStart = i + 1;
+                if (conn.watcher != null) {
+                    continue;
+                }
+                if (events != null && line.trim().equals("watch")) {
+                    conn.output.write(("Watching changes to the queue; "
+                            + "disconnect to stop\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    conn.output.write(END_OF_RESPONSE);
+                    conn.watcher = new Watcher(key);
+                    events.subscribe(conn.watcher);
+                    continue;
+                }
+                conn.engine.processLine(line);
+                conn.output.write(END_OF_RESPONSE);
+                conn.closing = !conn.engine.isRunning();
+            }
+        }
+        input.position(lineStart);
+        input.compact();
+        if (!input.hasRemaining()) {
+            if (input.capacity() >= MAX_LINE_BYTES) {
+                throw new IOException("Command line too long");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            conn.input = bigger.put(input);
+        }
+        if (journal != null) {
+            synchronized (priQueue) {
+                journal.commit();
+            }
+        }
+        if (conn.output.size() > 0) {
+            conn.pending = ByteBuffer.wrap(conn.output.toByteArray());
+            conn.output.reset();
+            write(key);
+        }
+    }
+
+    /**
+     * Sends pending responses. Reading is paused until they are all sent,
+     * so a slow station cannot make the server buffer without bound.
+     * @param key		Key of the station's connection
+     * @throws IOException if the connection fails
+     */
+    private void write(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(conn.pending);
+        if (conn.pending.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (conn.closing) {
+            close(key);
+        } else {
+            conn.pending = null;
+            key.interestOps(SelectionKey.OP_READ);
+            if (conn.watcher != null) {
+                sendEvents(key);
+            }
+        }
+    }
+
+    /**
+     * Sends a display the changes delivered to it since the last write,
+     * unless a write is still in progress, and asks for the next batch
+     * @param key		Key of the display's connection
+     * @throws IOException if the connection fails
+     */
+    private void sendEvents(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        Connection conn = (Connection) key.attachment();
+        if (conn.pending != null) {
+            return;     // write() comes back here when it is done
+        }
+        byte[] text = conn.watcher.take();
+        if (text != null) {
+            conn.pending = ByteBuffer.wrap(text);
+            conn.watcher.subscription.request(1);
+            write(key);
+        }
+    }
+
+    /**
+     * Closes the connection of a station that failed, but never the
+     * listening socket, so a failed accept does not stop the server
+     * @param key		Key whose operation failed
+     */
+    private void closeStation(SelectionKey key) {
+        if (key.channel() != server) {
+            close(key);
+        }
+    }
+
+    /**
+     * Names a station's connection for the log
+     * @param key		Key of the connection
+     * @return			Remote address, or the listener's local address
+     */
+    private static String describe(SelectionKey key) {
+        if (key.channel() instanceof SocketChannel) {
+            return String.valueOf(((SocketChannel) key.channel()).socket()
+                    .getRemoteSocketAddress());
+        }
+        return String.valueOf(((ServerSocketChannel) key.channel()).socket()
+                .getLocalSocketAddress());
+    }
+
+    /**
+     * Closes a station's connection
+     * @param key		Key of the connection
+     */
+    private void close(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        if (conn.watcher != null && conn.watcher.subscription != null) {
+            conn.watcher.subscription.cancel();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // the station is gone either way
+        }
+    }
+
+    /**
+     * State of one station's connection.
+     */
+    private static class Connection {
+        private ByteBuffer input;               // bytes not yet executed
+        private ByteArrayOutputStream output;   // responses not yet sent
+        private ByteBuffer pending;             // responses being sent
+        private TriageSystem engine;            // runs this station's commands
+        private boolean closing;                // station entered `quit`
+        private Watcher watcher;                // null unless it is a display
+
+        /**
+         * Creates the state of a new connection
+         * @param priQueue		Queue shared by all stations
+         * @param follower		Replication the queue follows, or null
+         */
+        Connection(PatientPriorityQueue priQueue,
+                ReplicationFollower follower) {
+            this.input = ByteBuffer.allocate(8192);
+            this.output = new ByteArrayOutputStream();
+            this.engine = new TriageSystem(priQueue, new PrintStream(output,
+                    false, StandardCharsets.UTF_8));
+            engine.setFileCommands(false);
+            engine.setFollower(follower);
+        }
+    }
+
+    /**
+     * Subscription of a display to the queue's changes. Batches arrive on
+     * the publisher's executor and are written by the selector thread.
+     */
+    private class Watcher implements Flow.Subscriber<List<QueueEvent>> {
+        private SelectionKey key;               // display's connection
+        private volatile Flow.Subscription subscription;
+        private StringBuilder text;             // lines not yet written
+
+        /**
+         * Creates the subscriber of a display
+         * @param key		Key of the display's connection
+         */
+        Watcher(SelectionKey key) {
+            this.key = key;
+            this.text = new StringBuilder();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<QueueEvent> batch) {
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); i++) {
+                    text.append(batch.get(i)).append('\n');
+                }
+            }
+            ready();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            synchronized (this) {
+                text.append("Error: ").append(error.getMessage())
+                    .append('\n');
+            }
+            ready();
+        }
+
+        @Override
+        public void onComplete() {
+            // the server is shutting down
+        }
+
+        /**
+         * Takes the lines not yet written
+         * @return		Lines as bytes, null if there are none
+         */
+        synchronized byte[] take() {
+            if (text.length() == 0) {
+                return null;
+            }
+            byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+            text.setLength(0);
+            return bytes;
+        }
+
+        /**
+         * Asks the selector thread to write the lines
+         */
+        private void ready() {
+            eventsReady.add(key);
+            selector.wakeup();
+        }
+    }
+}
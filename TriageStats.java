@@ -0,0 +1,223 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counters and latency histograms for a PatientPriorityQueue. Attach with
+ * PatientPriorityQueue.setStats. Recording is lock-free and, apart from
+ * resizing the arrival time table, allocation-free, so it is cheap enough
+ * to leave on in production. The table only holds the patients waiting,
+ * however large their arrival numbers get.
+ *
+ * Latencies are in nanoseconds. Wait time is measured from when a patient
+ * was added to when they were called.
+ * @author Ruifeng Wang
+ */
+public class TriageStats {
+    private static final String[] OPERATIONS = {"add", "next", "change",
+            "save", "load"};
+    /** Index of addPatient latencies */
+    public static final int ADD = 0;
+    /** Index of dequeue latencies */
+    public static final int DEQUEUE = 1;
+    /** Index of changePri latencies */
+    public static final int CHANGE = 2;
+    /** Index of saveFile latencies */
+    public static final int SAVE = 3;
+    /** Index of load command latencies */
+    public static final int LOAD = 4;
+    private static final String[] LEVELS = {"immediate", "emergency",
+            "urgent", "minimal"};
+
+    private LatencyHistogram[] latencies;   // one per operation
+    private LatencyHistogram waitTimes;     // arrival to call, nanoseconds
+    private AtomicIntegerArray depth;       // waiting patients per priority
+    private IntLongMap arrivalNanos;        // waiting, by arrival number
+
+    /**
+     * Creates empty statistics.
+     */
+    public TriageStats() {
+        this.latencies = new LatencyHistogram[OPERATIONS.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        this.waitTimes = new LatencyHistogram();
+        this.depth = new AtomicIntegerArray(LEVELS.length + 1);
+        this.arrivalNanos = new IntLongMap();
+    }
+
+    /**
+     * Records how long an operation took
+     * @param operation		ADD, DEQUEUE, CHANGE, SAVE or LOAD
+     * @param nanos			Duration in nanoseconds
+     */
+    public void recordLatency(int operation, long nanos) {
+        latencies[operation].record(nanos);
+    }
+
+    /**
+     * Records a patient joining the queue
+     * @param patient		Patient that was added
+     * @param now			Current System.nanoTime()
+     */
+    public void recordArrival(Patient patient, long now) {
+        arrivalNanos.put(patient.getArrivalOrder(), now);
+        depth.incrementAndGet(patient.getPriorityCode());
+    }
+
+    /**
+     * Records a patient being called
+     * @param patient		Patient that was called
+     * @param now			Current System.nanoTime()
+     */
+    public void recordCall(Patient patient, long now) {
+        long arrived = arrivalNanos.remove(patient.getArrivalOrder(),
+                Long.MIN_VALUE);
+        if (arrived != Long.MIN_VALUE) {
+            waitTimes.record(now - arrived);
+        }
+        depth.decrementAndGet(patient.getPriorityCode());
+    }
+
+    /**
+     * Records a patient leaving without being called, which does not count
+     * as a wait time
+     * @param patient		Patient who left
+     */
+    public void recordLeave(Patient patient) {
+        arrivalNanos.remove(patient.getArrivalOrder(), 0);
+        depth.decrementAndGet(patient.getPriorityCode());
+    }
+
+    /**
+     * Records a patient moving between priority codes
+     * @param oldPriority		Priority code before the change
+     * @param newPriority		Priority code after the change
+     */
+    public void recordMove(int oldPriority, int newPriority) {
+        depth.decrementAndGet(oldPriority);
+        depth.incrementAndGet(newPriority);
+    }
+
+    /**
+     * Records every patient leaving the queue at once
+     */
+    public void recordClear() {
+        for (int i = 0; i < depth.length(); i++) {
+            depth.set(i, 0);
+        }
+        arrivalNanos.clear();
+    }
+
+    /**
+     * Renders the statistics as a table for the console
+     * @return		Multi-line report
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-8s %10s %10s %10s %10s %10s %10s%n",
+                "op", "count", "mean us", "p50 us", "p99 us", "p99.9 us",
+                "max us"));
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram h = latencies[i];
+            out.append(String.format(
+                    "%-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    OPERATIONS[i], h.getCount(), h.getMean() / 1e3,
+                    h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3,
+                    h.getPercentile(99.9) / 1e3, h.getMax() / 1e3));
+        }
+        out.append("\nWaiting by priority:");
+        for (int i = 0; i < LEVELS.length; i++) {
+            out.append(' ').append(LEVELS[i]).append('=')
+               .append(depth.get(i + 1));
+        }
+        out.append(String.format("%nWait time (s): called=%d mean=%.1f "
+                + "p50=%.1f p99=%.1f max=%.1f", waitTimes.getCount(),
+                waitTimes.getMean() / 1e9, waitTimes.getPercentile(50) / 1e9,
+                waitTimes.getPercentile(99) / 1e9, waitTimes.getMax() / 1e9));
+        return out.toString();
+    }
+
+    /**
+     * Renders the statistics as one JSON object
+     * @return		JSON text
+     */
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\"time\":")
+                .append(System.currentTimeMillis());
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram h = latencies[i];
+            out.append(",\"").append(OPERATIONS[i]).append("\":{")
+               .append("\"count\":").append(h.getCount())
+               .append(",\"meanNanos\":").append((long) h.getMean())
+               .append(",\"p50Nanos\":").append(h.getPercentile(50))
+               .append(",\"p99Nanos\":").append(h.getPercentile(99))
+               .append(",\"p999Nanos\":").append(h.getPercentile(99.9))
+               .append(",\"maxNanos\":").append(h.getMax()).append('}');
+        }
+        out.append(",\"waiting\":{");
+        for (int i = 0; i < LEVELS.length; i++) {
+            out.append(i == 0 ? "\"" : ",\"").append(LEVELS[i]).append("\":")
+               .append(depth.get(i + 1));
+        }
+        out.append("},\"wait\":{\"count\":").append(waitTimes.getCount())
+           .append(",\"meanNanos\":").append((long) waitTimes.getMean())
+           .append(",\"p99Nanos\":").append(waitTimes.getPercentile(99))
+           .append(",\"maxNanos\":").append(waitTimes.getMax())
+           .append("}}");
+        return out.toString();
+    }
+
+    /**
+     * Appends the statistics to a file, as a CSV row if the file name ends
+     * in .csv and as a line of JSON otherwise. A CSV header is written when
+     * the file is new.
+     * @param fileName		File to append to
+     * @throws IOException if the file cannot be written
+     */
+    public void dump(String fileName) throws IOException {
+        boolean csv = fileName.endsWith(".csv");
+        boolean fresh = !new File(fileName).exists();
+        PrintWriter writer = new PrintWriter(new FileWriter(fileName, true));
+        try {
+            if (!csv) {
+                writer.println(toJson());
+                return;
+            }
+            if (fresh) {
+                writer.print("time");
+                for (int i = 0; i < OPERATIONS.length; i++) {
+                    writer.print("," + OPERATIONS[i] + "_count,"
+                            + OPERATIONS[i] + "_p50_ns," + OPERATIONS[i]
+                            + "_p99_ns");
+                }
+                for (int i = 0; i < LEVELS.length; i++) {
+                    writer.print("," + LEVELS[i]);
+                }
+                writer.println(",wait_p50_ns,wait_p99_ns");
+            }
+            writer.print(System.currentTimeMillis());
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                LatencyHistogram h = latencies[i];
+                writer.print("," + h.getCount() + "," + h.getPercentile(50)
+                        + "," + h.getPercentile(99));
+            }
+            for (int i = 0; i < LEVELS.length; i++) {
+                writer.print("," + depth.get(i + 1));
+            }
+            writer.println("," + waitTimes.getPercentile(50) + ","
+                    + waitTimes.getPercentile(99));
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -4,10 +4,21 @@
  */
 package rwang_P2X;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User interface for hospital emergency room triaging system
@@ -28,109 +39,451 @@ public class TriageSystem {
     		+ "minimal\r\n            <patient-name>: patient's full legal name"
     		+ " (may contain spaces)\r\nnext        Announces the patient to be"
     		+ " seen next. Takes into account the\r\n            type of "
-    		+ "emergency and the patient's arrival order.\r\npeek        "
+    		+ "emergency and the patient's arrival order.\r\nnext <n>    "
+    		+ "Announces the next n patients to be seen at once\r\npeek        "
     		+ "Displays the patient that is next in line, but keeps in "
+    		+ "queue\r\npeek <k>    Displays the next k patients in the "
+    		+ "order they will be\r\n            called, keeping them in "
     		+ "queue\r\nlist        Displays the list of all patients that are "
     		+ "still waiting\r\n            in the order that they have arrived"
-    		+ ".\r\nload <file> Reads the file and executes the command on each"
-    		+ " line\r\nchange <arrivalID> <newPriority>\r\n" +
+    		+ ".\r\nfind <name-prefix>\r\n            Lists the waiting "
+    		+ "patients whose name starts with the\r\n            prefix, "
+    		+ "ignoring case\r\nload [-q] <file>\r\n            Reads the file and "
+    		+ "executes the command on each line.\r\n            -q skips "
+    		+ "echoing each line\r\nchange <arrivalID> <newPriority>\r\n" +
     	    "            Changes the patient's priority in the triage "
     	    + "system.\r\n" +
             "            <arrivalID>: ID assigned to patient upon arrival\r\n" +
     	    "            <priority-code> must be one of the 4 accepted priority"
     		+ " codes:\r\n" + 
     		"                1. immediate 2. emergency 3. urgent 4. "
-    		+ "minimal\r\nsave <fileName>\r\n            Saves the triage queue"
+    		+ "minimal\r\nleave <arrivalID> [<arrivalID> ...]\r\n"
+    		+ "            Removes patients who left without being seen "
+    		+ "or were\r\n            transferred\r\nsave <fileName>\r\n            Saves the triage queue"
     		+ " to a file that can be reloaded again later\r\n"
+    		+ "savebin <fileName>\r\n            Saves the triage queue"
+    		+ " to a compact binary snapshot, keeping\r\n            arrival"
+    		+ " IDs\r\nloadbin <fileName>\r\n            Replaces the "
+    		+ "triage queue with a binary snapshot\r\n"
+    		+ "aging <minutes>|off\r\n            Promotes waiting patients"
+    		+ " one priority level each time they\r\n            have waited"
+    		+ " the given minutes, or turns that off\r\n"
+    		+ "stats       Displays operation latencies, queue depth per "
+    		+ "priority\r\n            and waiting times\r\n"
+    		+ "stats dump <file> <seconds>|off\r\n            Appends the "
+    		+ "statistics to a .csv or JSON lines file every\r\n"
+    		+ "            given seconds, or stops doing so\r\n"
+    		+ "promote     Stops following the primary and takes over as "
+    		+ "the\r\n            triage system of record\r\n"
     		+ "help        Displays this menu\r\n"
     		+ "quit        Exits the program";
-    private static boolean keepAsking = true;
+    private static final String MSG_NO_FILES = "Error: files can only be "
+    		+ "read and written at the server's own console";
+    private static final String[] COMMANDS = {"help", "add", "peek", "next",
+            "list", "load", "debug", "change", "save", "savebin", "loadbin",
+            "quit", "aging", "stats", "promote", "find", "leave"};
+    private static final int CMD_HELP = 0;
+    private static final int CMD_ADD = 1;
+    private static final int CMD_PEEK = 2;
+    private static final int CMD_NEXT = 3;
+    private static final int CMD_LIST = 4;
+    private static final int CMD_LOAD = 5;
+    private static final int CMD_DEBUG = 6;
+    private static final int CMD_CHANGE = 7;
+    private static final int CMD_SAVE = 8;
+    private static final int CMD_SAVEBIN = 9;
+    private static final int CMD_LOADBIN = 10;
+    private static final int CMD_QUIT = 11;
+    private static final int CMD_AGING = 12;
+    private static final int CMD_STATS = 13;
+    private static final int CMD_PROMOTE = 14;
+    private static final int CMD_FIND = 15;
+    private static final int CMD_LEAVE = 16;
+    // commands that change the queue, refused while following a primary
+    private static final int[] WRITE_COMMANDS = {CMD_ADD, CMD_NEXT,
+            CMD_LOAD, CMD_CHANGE, CMD_LOADBIN, CMD_AGING, CMD_LEAVE};
+    // commands that read or write files, refused to remote stations
+    private static final int[] FILE_COMMANDS = {CMD_LOAD, CMD_SAVE,
+            CMD_SAVEBIN, CMD_LOADBIN};
+    // commands served from the published snapshot, without the queue lock
+    private static final int[] SNAPSHOT_COMMANDS = {CMD_LIST, CMD_SAVE};
+    // changes per display buffered by the server, and sent per batch
+    private static final int EVENT_BUFFER = 4096;
+    private static final int EVENT_BATCH = 256;
+    // index + 1 is the priority code
+    private static final String[] PRIORITY_NAMES = {"immediate", "emergency",
+            "urgent", "minimal"};
+    // priority column of the patient list, padded to the header width
+    private static final String[] PRIORITY_COLUMNS = {"  immediate    ",
+            "  emergency    ", "  urgent       ", "  minimal      "};
+
+    private PatientPriorityQueue priQueue; // queue the commands operate on
+    private PrintStream out;               // where command output is written
+    private CommandTokenizer tokens;       // reused for every command line
+    private boolean keepAsking;            // false once `quit` was entered
+    private ScheduledExecutorService dumper; // periodic `stats dump`, lazy
+    private ScheduledFuture<?> dumpTask;   // null when not dumping
+    private ReplicationFollower follower;  // primary followed, or null
+    private boolean failureShown;          // follower's failure was reported
+    private boolean fileCommands;          // false for remote stations
 
     /**
      * Entry point of the program
-     * @param args not used
+     * @param args optional `--journal <directory>` to recover the waiting
+     *             room from, and journal every change to, that directory,
+     *             optional `--server [<host>:]<port>` to serve the queue to
+     *             stations over TCP instead of reading the console, on
+     *             the loopback interface unless a host is given, where
+     *             displays can `watch` the queue's changes,
+     *             optional `--primary [<host>:]<port>` to ship every
+     *             change to followers connecting to that port, also on
+     *             the loopback interface unless a host is given, and
+     *             optional `--follow <host>:<port>` to mirror a primary
+     *             until `promote` is entered
      * @throws IOException 
      */
     public static void main(String[] args) throws IOException {
         System.out.println(MSG_WELCOME);
 
-        Scanner console = new Scanner(System.in);
+        String journalDir = null;
+        InetSocketAddress serverAddress = null;
+        InetSocketAddress primaryListen = null;
+        String primaryAddress = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--journal")) {
+                journalDir = args[i + 1];
+            } else if (args[i].equals("--server")) {
+                serverAddress = listenAddress(args[i + 1]);
+            } else if (args[i].equals("--primary")) {
+                primaryListen = listenAddress(args[i + 1]);
+            } else if (args[i].equals("--follow")) {
+                primaryAddress = args[i + 1];
+            }
+        }
+
         PatientPriorityQueue
             priQueue = new PatientPriorityQueue();
-        while (keepAsking) {
+        priQueue.setStats(new TriageStats());
+        PatientJournal journal = null;
+        if (journalDir != null) {
+            journal = new PatientJournal(new File(journalDir));
+            journal.recover(priQueue);
+            System.out.println("Recovered " + priQueue.size()
+                    + " patients from journal " + journalDir);
+        }
+        ReplicationPrimary primary = null;
+        if (primaryListen != null) {
+            primary = new ReplicationPrimary(priQueue, primaryListen);
+            System.out.println("Shipping changes to followers on "
+                    + primaryListen.getHostString() + ":"
+                    + primary.getPort());
+        }
+        ReplicationFollower follower = null;
+        if (primaryAddress != null) {
+            int colon = primaryAddress.lastIndexOf(':');
+            follower = new ReplicationFollower(priQueue,
+                    primaryAddress.substring(0, colon),
+                    Integer.parseInt(primaryAddress.substring(colon + 1)));
+            follower.start();
+            System.out.println("Following primary " + primaryAddress);
+        }
+        if (serverAddress != null) {
+            TriageServer server = new TriageServer(priQueue, journal,
+                    serverAddress);
+            server.setFollower(follower);
+            QueueEventPublisher events = new QueueEventPublisher(
+                    Executors.newSingleThreadExecutor(r -> {
+                        Thread thread = new Thread(r, "queue-events");
+                        thread.setDaemon(true);
+                        return thread;
+                    }), EVENT_BUFFER, EVENT_BATCH,
+                    QueueEventPublisher.OverflowPolicy.CONFLATE);
+            synchronized (priQueue) {
+                priQueue.addOperationLog(events);
+            }
+            server.setEventPublisher(events);
+            System.out.println("Serving triage stations on "
+                    + serverAddress.getHostString() + ":" + server.getPort());
+            server.run();
+        } else {
+            runConsole(priQueue, journal, follower);
+        }
+        if (primary != null) {
+            primary.close();
+        }
+        if (journal != null) {
+            synchronized (priQueue) {
+                journal.close();
+            }
+        }
+
+        System.out.println(MSG_GOODBYE);
+    }
+
+    /**
+     * Parses the address to listen on from a command line argument
+     * @param value    `<host>:<port>`, or only `<port>` for the loopback
+     *                 interface
+     * @return         Address to bind
+     */
+    private static InetSocketAddress listenAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(value));
+        }
+        return new InetSocketAddress(value.substring(0, colon),
+                Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    /**
+     * Reads commands typed at the console until the user enters `quit`
+     * @param priQueue priority queue to operate on
+     * @param journal  journal to commit after each command, or null
+     * @param follower replication the queue follows until `promote`, or
+     *                 null
+     * @throws IOException if the journal cannot be written
+     */
+    private static void runConsole(PatientPriorityQueue priQueue,
+                                   PatientJournal journal,
+                                   ReplicationFollower follower)
+                                   		throws IOException {
+        Scanner console = new Scanner(System.in);
+        TriageSystem triage = new TriageSystem(priQueue, System.out);
+        triage.setFollower(follower);
+        while (triage.isRunning()) {
             System.out.print("\ntriage> ");
             String line = console.nextLine();
-            processLine(line, priQueue);
+            triage.processLine(line);
+            if (journal != null) {
+                synchronized (priQueue) {
+                    journal.commit();
+                }
+            }
         }
+    }
 
-        System.out.println(MSG_GOODBYE);
+    /**
+     * Creates a command processor for a queue, so the triage commands can be
+     * embedded in other programs, e.g. servers and load tests
+     * @param priQueue priority queue the commands operate on
+     * @param out      stream that command output is written to, e.g.
+     *                 System.out, a buffer per connection, or
+     *                 OutputStream.nullOutputStream() to discard it
+     */
+    public TriageSystem(PatientPriorityQueue priQueue, PrintStream out) {
+        this.priQueue = priQueue;
+        this.out = out;
+        this.tokens = new CommandTokenizer();
+        this.keepAsking = true;
+        this.fileCommands = true;
+    }
+
+    /**
+     * Refuses commands that change the queue until the follower is promoted
+     * @param follower replication the queue follows, or null
+     */
+    void setFollower(ReplicationFollower follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * Allows or refuses the commands that read or write files, e.g. for
+     * stations connected over the network
+     * @param allowed  false to refuse load, save, savebin, loadbin and
+     *                 stats dump
+     */
+    void setFileCommands(boolean allowed) {
+        this.fileCommands = allowed;
+    }
+
+    /**
+     * Checks if the user has not yet entered `quit`
+     * @return true until `quit` is processed
+     */
+    public boolean isRunning() {
+        return keepAsking;
     }
 
     /**
-     * Process the line entered from the user or read from the file
+     * Process the line entered from the user or read from the file. The
+     * command runs holding the queue's monitor, so that replication sees
+     * each change as a whole. Read-only commands that can be answered from
+     * a snapshot hold the monitor at most for the O(1) it takes to publish
+     * one. `peek` is not among them: it applies due promotions first.
      * @param line     String command to execute
+     */
+    public void processLine(String line) {
+        tokens.reset(line);
+        if (!tokens.next()) {
+            out.println("No command entered.");
+            return;
+        }
+        int cmd = tokens.lookup(COMMANDS);
+        if (follower != null && !follower.isPromoted()
+                && follower.getFailure() != null && !failureShown) {
+            failureShown = true;
+            out.println("Error: stopped following the primary ("
+                    + follower.getFailure() + "); enter promote to take over");
+        }
+        if (follower != null && !follower.isPromoted()
+                && isOneOf(WRITE_COMMANDS, cmd)) {
+            out.println("Error: this node follows a primary; enter promote "
+                    + "to take over first");
+            return;
+        }
+        if (!fileCommands && isOneOf(FILE_COMMANDS, cmd)) {
+            out.println(MSG_NO_FILES);
+            return;
+        }
+        try {
+            if (isOneOf(SNAPSHOT_COMMANDS, cmd)) {
+                // rendering a big table or writing to a slow disk never
+                // holds up other threads
+                executeCommand(cmd, line, priQueue);
+            } else {
+                synchronized (priQueue) {
+                    executeCommand(cmd, line, priQueue);
+                }
+            }
+        } catch (IOException e) {
+            out.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a command whose name has already been read from tokens
+     * @param cmd      index of the command in COMMANDS, -1 if unknown
+     * @param line     String command to execute, for error messages
      * @param priQueue Priority Queue to operate on
      * @throws IOException 
      */
-    private static void processLine(String line,
-                                    PatientPriorityQueue priQueue) 
-                                    		throws IOException {
-    	try {
-    		Scanner lineScanner = new Scanner(line); // Scanner to extract words
-    		String cmd = lineScanner.next();         // The first is user's command
-
-        // A switch statement could be used on strings, but not all have JDK7
-	        if (cmd.equals("help")) {
-	            System.out.println(MSG_HELP);
-	        } else if (cmd.equals("add")) {
-	            addPatient(lineScanner, priQueue);
-	        } else if (cmd.equals("peek")) {
-	            peekNextPatient(priQueue);
-	        } else if (cmd.equals("next")) {
-	            dequeueNextPatient(priQueue);
-	        } else if (cmd.equals("list")) {
-	            showPatientList(priQueue);
-	        } else if (cmd.equals("load")) {
-	            executeCommandsFromFile(lineScanner, priQueue);
-	        } else if (cmd.equals("debug")) {
-	            System.out.println(priQueue.toString());
-	        } else if (cmd.equals("change")) {
-	        	changePriority(lineScanner, priQueue);
-	        } else if (cmd.equals("save")) {
-	            saveCommands(lineScanner, priQueue);
-	        } else if (cmd.equals("quit")) {
-	            keepAsking = false;
-	    	} else {
-	            System.out.println("Error: unrecognized command: " + line);
-	        }
-        } catch(Exception e) {
-        	System.out.println("No command entered.");
+    private void executeCommand(int cmd, String line,
+                                       PatientPriorityQueue priQueue)
+                                       		throws IOException {
+        switch (cmd) {
+            case CMD_HELP:
+                out.println(MSG_HELP);
+                break;
+            case CMD_ADD:
+                addPatient(tokens, priQueue, null, false);
+                break;
+            case CMD_PEEK:
+                if (tokens.hasNext()) {
+                    peekNextPatients(tokens, priQueue);
+                } else {
+                    peekNextPatient(priQueue);
+                }
+                break;
+            case CMD_NEXT:
+                if (tokens.hasNext()) {
+                    dequeueNextPatients(tokens, priQueue);
+                } else {
+                    dequeueNextPatient(priQueue);
+                }
+                break;
+            case CMD_LIST:
+                showPatientList(priQueue.getSnapshot());
+                break;
+            case CMD_LOAD:
+                executeCommandsFromFile(tokens, priQueue);
+                break;
+            case CMD_DEBUG:
+                out.println(priQueue.toString());
+                break;
+            case CMD_CHANGE:
+                changePriority(tokens, priQueue);
+                break;
+            case CMD_SAVE:
+                saveCommands(tokens, priQueue.getSnapshot());
+                break;
+            case CMD_SAVEBIN:
+                saveSnapshot(tokens, priQueue);
+                break;
+            case CMD_LOADBIN:
+                loadSnapshot(tokens, priQueue);
+                break;
+            case CMD_QUIT:
+                keepAsking = false;
+                break;
+            case CMD_AGING:
+                setAging(tokens, priQueue);
+                break;
+            case CMD_STATS:
+                showStats(tokens, priQueue);
+                break;
+            case CMD_PROMOTE:
+                promote();
+                break;
+            case CMD_FIND:
+                findPatients(tokens, priQueue);
+                break;
+            case CMD_LEAVE:
+                removePatients(tokens, priQueue);
+                break;
+            default:
+                out.println("Error: unrecognized command: " + line);
         }
     }
 
     /**
      * Reads a text file with each command on a separate line and executes the
-     * lines as if they were typed into the command prompt.
-     * @param lineScanner Scanner remaining characters after the command `load`
-     * @param priQueue    priority queue to operate on
+     * lines as if they were typed into the command prompt. Runs of `add`
+     * lines are added as one batch, and `-q` before the file name turns off
+     * the echo of each line.
+     * @param tokens   tokenizer positioned after the command `load`
+     * @param priQueue priority queue to operate on
      * @throws IOException 
      */
-    private static void executeCommandsFromFile(Scanner lineScanner,
+    private void executeCommandsFromFile(CommandTokenizer tokens,
                                                 PatientPriorityQueue priQueue) 
                                                 		throws IOException {
-        // read the rest of the line into a single string
-        String fileName = lineScanner.nextLine().trim();
+        String fileName = tokens.rest();
+        boolean quiet = fileName.equals("-q") || fileName.startsWith("-q ");
+        if (quiet) {
+            fileName = fileName.substring(2).trim();
+        }
+        if (fileName.isEmpty()) {
+            out.println("No file name entered.");
+            return;
+        }
 
+        long start = System.nanoTime();
+        // consecutive adds are collected and heapified in one go
+        AddBatch batch = new AddBatch();
+        int lines = 0;
         try {
-            Scanner file = new Scanner(new File(fileName));
-            while (file.hasNext()) {
-                final String line = file.nextLine();
-                System.out.println("\ntriage> " + line);
-                processLine(line, priQueue);
+            BufferedReader file = new BufferedReader(new FileReader(fileName));
+            try {
+                String line;
+                while ((line = file.readLine()) != null) {
+                    lines++;
+                    if (!quiet) {
+                        out.println("\ntriage> " + line);
+                    }
+                    tokens.reset(line);
+                    int cmd = tokens.next() ? tokens.lookup(COMMANDS) : -1;
+                    if (cmd == CMD_ADD) {
+                        addPatient(tokens, priQueue, batch, quiet);
+                    } else {
+                        batch.flush(priQueue);
+                        processLine(line);
+                    }
+                }
+                batch.flush(priQueue);
+            } finally {
+                file.close();
+            }
+            if (quiet) {
+                out.printf("Executed %d commands from %s%n", lines,
+                        fileName);
+            }
+            if (priQueue.getStats() != null) {
+                priQueue.getStats().recordLatency(TriageStats.LOAD,
+                        System.nanoTime() - start);
             }
-            file.close();
         } catch (FileNotFoundException e) {
-            System.out.printf("File %s was not found.%n", fileName);
+            out.printf("File %s was not found.%n", fileName);
         }
     }
 
@@ -138,37 +491,71 @@ public class TriageSystem {
      * Displays the next patient in the waiting room that will be called.
      * @param priQueue priority queue to operate on
      */
-    private static void peekNextPatient(PatientPriorityQueue priQueue) {
+    private void peekNextPatient(PatientPriorityQueue priQueue) {
     	if(priQueue.size() == 0) {
-        	System.out.println("There are no patients in the waiting area.");
+        	out.println("There are no patients in the waiting area.");
         } else {
-        	System.out.println("Highest priority patient to be called "
+        	out.println("Highest priority patient to be called "
         			+ "next: " + priQueue.peek().getName());
         }
     }
 
     /**
-     * Displays the list of patients in the waiting room.
+     * Displays the list of patients in the waiting room, in arrival order.
+     * The whole table is rendered first and printed in one write.
+     * @param view     snapshot of the queue to list
+     */
+    private void showPatientList(QueueSnapshot view) {
+        StringBuilder table = new StringBuilder(64 * (view.size() + 4));
+        table.append("# patients waiting: ").append(view.size())
+             .append("\n\n")
+             .append("  Arrival #   Priority Code   Patient Name\n")
+             .append("+-----------+---------------+--------------+\n");
+        appendRows(table, view.getPatientList());
+        out.print(table);
+    }
+
+    /**
+     * Displays the waiting patients whose name starts with a prefix
+     * @param tokens   tokenizer positioned after the command `find`
      * @param priQueue priority queue to operate on
      */
-    private static void showPatientList(PatientPriorityQueue priQueue) {
-        System.out.println("# patients waiting: " + priQueue.size() + "\n");
-        System.out.println("  Arrival #   Priority Code   Patient Name\n" +
-                           "+-----------+---------------+--------------+");
-        for(int i = 0; i < priQueue.size(); i++) {
-        	System.out.printf("      %-6s", priQueue.getPatientList()
-        			.get(i).getArrivalOrder());
-        	if(priQueue.getPatientList().get(i).getPriorityCode() == 1) {
-        		System.out.printf("  %-2s    ","immediate");
-        	} else if(priQueue.getPatientList().get(i).getPriorityCode() == 2) {
-        		System.out.printf("  %-2s    ","emergency");
-        	} else if(priQueue.getPatientList().get(i).getPriorityCode() == 3) {
-        		System.out.printf("  %-2s       ","urgent");
-        	} else {
-        		System.out.printf("  %-2s      ","minimal");
+    private void findPatients(CommandTokenizer tokens,
+                              PatientPriorityQueue priQueue) {
+        String prefix = tokens.rest();
+        if (prefix.isEmpty()) {
+            out.println("No name entered.");
+            return;
+        }
+        ArrayList<Patient> found = priQueue.findByName(prefix);
+        if (found.isEmpty()) {
+            out.println("No waiting patient's name starts with " + prefix);
+            return;
+        }
+        StringBuilder table = new StringBuilder(64 * (found.size() + 4));
+        table.append("# patients matching ").append(prefix).append(": ")
+             .append(found.size()).append("\n\n")
+             .append("  Arrival #   Priority Code   Patient Name\n")
+             .append("+-----------+---------------+--------------+\n");
+        appendRows(table, found);
+        out.print(table);
+    }
+
+    /**
+     * Renders patients as rows of the patient table
+     * @param table    table to append the rows to
+     * @param rows     patients to render, in display order
+     */
+    private static void appendRows(StringBuilder table,
+                                   Iterable<Patient> rows) {
+        for(Patient patient : rows) {
+        	int start = table.length();
+        	table.append("      ").append(patient.getArrivalOrder());
+        	while(table.length() - start < 12) {
+        		table.append(' ');
         	}
-        	System.out.printf("   %-2s",priQueue.getPatientList()
-        			.get(i).getName() + "\n");
+        	table.append(PRIORITY_COLUMNS[patient.getPriorityCode() - 1])
+        	     .append("   ").append(patient.getName()).append('\n');
         }
     }
 
@@ -177,136 +564,373 @@ public class TriageSystem {
      * screen.
      * @param priQueue priority queue to operate on
      */
-    private static void dequeueNextPatient(
+    private void dequeueNextPatient(
         PatientPriorityQueue priQueue) {
         if(priQueue.size() == 0) {
-        	System.out.println("There are no patients in the waiting area.");
+        	out.println("There are no patients in the waiting area.");
         } else {
-        	System.out.println("This patient will now be seen: " + priQueue
+        	out.println("This patient will now be seen: " + priQueue
         			.dequeue().getName());
         }
     }
 
     /**
-     * Adds the patient to the waiting room.
-     * @param lineScanner Scanner with remaining chars after the command
-     * @param priQueue    priority queue to operate on
+     * Displays the next patients to be called, in call order, keeping them
+     * in the queue.
+     * @param tokens   tokenizer positioned after the command `peek`
+     * @param priQueue priority queue to operate on
      */
-    private static void addPatient(Scanner lineScanner,
-                                   PatientPriorityQueue priQueue) {
-        int priority = 0;
-        String priorityCode = null;
-        if(!lineScanner.hasNext()) {
-        	System.out.println("Missing priority code.");
+    private void peekNextPatients(CommandTokenizer tokens,
+                                  PatientPriorityQueue priQueue) {
+        if (!tokens.next() || !tokens.isTokenInt() || tokens.tokenInt() < 1) {
+            out.println("Error: number of patients must be a positive"
+                    + " integer");
+        } else if (priQueue.size() == 0) {
+            out.println("There are no patients in the waiting area.");
         } else {
-        	priorityCode = lineScanner.next();
-        	if(priorityCode.equals("immediate")) {
-            	priority = 1;
-            } else if(priorityCode.equals("emergency")) {
-            	priority = 2;
-            } else if(priorityCode.equals("urgent")) {
-            	priority = 3;
-            } else if(priorityCode.equals("minimal")) {
-            	priority = 4;
-            } else {
-            	System.out.println("Priority code is not recognized.");
-            	return;
+            ArrayList<Patient> next = priQueue.peekTop(tokens.tokenInt());
+            StringBuilder table = new StringBuilder(64 * (next.size() + 4));
+            table.append("# next patients to be called: ")
+                 .append(next.size()).append("\n\n")
+                 .append("  Arrival #   Priority Code   Patient Name\n")
+                 .append("+-----------+---------------+--------------+\n");
+            appendRows(table, next);
+            out.print(table);
+        }
+    }
+
+    /**
+     * Removes several patients from the waiting room at once and displays
+     * their names in one block.
+     * @param tokens   tokenizer positioned after the command `next`
+     * @param priQueue priority queue to operate on
+     */
+    private void dequeueNextPatients(CommandTokenizer tokens,
+                                            PatientPriorityQueue priQueue) {
+        if (!tokens.next() || !tokens.isTokenInt() || tokens.tokenInt() < 1) {
+            out.println("Error: number of patients must be a positive"
+                    + " integer");
+        } else if (priQueue.size() == 0) {
+            out.println("There are no patients in the waiting area.");
+        } else {
+            StringBuilder called = new StringBuilder();
+            for (Patient patient : priQueue.dequeue(tokens.tokenInt())) {
+                called.append("This patient will now be seen: ")
+                      .append(patient.getName()).append('\n');
             }
-	        StringBuilder patientNameSB = new StringBuilder();
-	        while(lineScanner.hasNext()) {
-		        patientNameSB.append(lineScanner.next() + " ");
-	        }
-	        String patientName = patientNameSB.toString().trim();
-	        if(!patientName.isEmpty()) {
-	        	priQueue.addPatient(priority, patientName);
-	        	System.out.println("Added patient \"" + patientName + "\" "
-	        			+ "to the priority system");
-	        } else {
-	        	System.out.println("Missing patient name.");
-	        }
+            out.print(called);
+        }
+    }
+
+    /**
+     * Adds the patient to the waiting room, or to a batch of patients that
+     * will be added together.
+     * @param tokens      tokenizer positioned after the command `add`
+     * @param priQueue    priority queue to operate on
+     * @param batch       batch to add to, null to add to the queue directly
+     * @param quiet       true to skip the confirmation message
+     */
+    private void addPatient(CommandTokenizer tokens,
+                                   PatientPriorityQueue priQueue,
+                                   AddBatch batch, boolean quiet) {
+        if(!tokens.next()) {
+        	out.println("Missing priority code.");
+        	return;
+        }
+        int priority = tokens.lookup(PRIORITY_NAMES) + 1;
+        if(priority == 0) {
+        	out.println("Priority code is not recognized.");
+        	return;
+        }
+        String patientName = tokens.rest();
+        if(patientName.isEmpty()) {
+        	out.println("Missing patient name.");
+        	return;
+        }
+        if(batch != null) {
+        	batch.add(priority, patientName);
+        } else {
+        	priQueue.addPatient(priority, patientName);
+        }
+        if(!quiet) {
+        	out.println("Added patient \"" + patientName
+        			+ "\" to the priority system");
         }
     }
     
     /**
      * Changes priority of a patient
-     * @param lineScanner		Scanner with remaining chars after the command
+     * @param tokens			Tokenizer positioned after the command
      * @param priQueue			priority queue to operate on
      */
-    private static void changePriority(Scanner lineScanner, 
+    private void changePriority(CommandTokenizer tokens, 
     		PatientPriorityQueue priQueue) {
-    	int patientNumber = 0;
-    	String newPriority = null;
-    	int priority = 0;
-    	if(!lineScanner.hasNextInt()) {
-    		System.out.println("Error: No patient id provided");
+    	if(!tokens.next() || !tokens.isTokenInt()) {
+    		out.println("Error: No patient id provided");
+    		return;
+    	}
+    	int patientNumber = tokens.tokenInt();
+    	if(!tokens.next()) {
+    		out.println("Error: No priority code given.");
+    		return;
+    	}
+    	int priority = tokens.lookup(PRIORITY_NAMES) + 1;
+    	if(priority == 0) {
+    		out.println("Error: invalid priority level code");
+    		return;
+    	}
+    	int index = priQueue.indexOf(patientNumber);
+    	if(index != -1) {
+    		out.println("Changed patient \"" + 
+    				priQueue.getPatientList().get(index).getName() 
+    				+ "\"'s priority to " + PRIORITY_NAMES[priority - 1]);
+    		priQueue.changePriorityById(patientNumber, priority);
     	} else {
-    		patientNumber = lineScanner.nextInt();
-    		if(!lineScanner.hasNext()) {
-        		System.out.println("Error: No priority code given.");
-        	} else {
-        		newPriority = lineScanner.next();
-        		if(!newPriority.equals("immediate") 
-        				&& !newPriority.equals("urgent") 
-        				&& !newPriority.equals("emergency") 
-        				&& !newPriority.equals("minimal")) {
-        			System.out.println("Error: invalid priority level code");	
-        		} else {
-        			int index = checkExists(priQueue, patientNumber);
-        			if(index != -1) {
-        				if(newPriority.equals("immediate")) {
-        		        	priority = 1;
-        		        } else if(newPriority.equals("emergency")) {
-        		        	priority = 2;
-        		        } else if(newPriority.equals("urgent")) {
-        		        	priority = 3;
-        		        } else if(newPriority.equals("minimal")) {
-        		        	priority = 4;
-        		        }
-	        			System.out.println("Changed patient \"" + 
-        		        priQueue.getPatientList().get(index).getName() 
-        		        + "\"'s priority to " + newPriority);
-        				priQueue.changePri(index, priority);
-	        		} else {
-	        			System.out.println("Error: no patient with the given "
-	        					+ "id was found");
-	        		}
-        		}
-        	}
+    		out.println("Error: no patient with the given "
+    				+ "id was found");
     	}
-    	
     }
     
     /**
-     * Check if a patient exists in the priority queue
-     * @param priQueue		Priority queue to check
-     * @param id			ID of patient to find
-     * @return				Index of patient if found, -1 if not found
+     * Removes patients who left the waiting room without being called
+     * @param tokens			Tokenizer positioned after the command
+     * @param priQueue			priority queue to operate on
      */
-    private static int checkExists(PatientPriorityQueue priQueue, int id) {
-    	for(int i = 0; i < priQueue.size(); i++) {
-    		if(id == priQueue.getPatientList().get(i).getArrivalOrder()) {
-    			return i;
+    private void removePatients(CommandTokenizer tokens,
+    		PatientPriorityQueue priQueue) {
+    	int[] ids = new int[4];
+    	int count = 0;
+    	while(tokens.next()) {
+    		if(!tokens.isTokenInt()) {
+    			out.println("Error: patient id must be a number: "
+    					+ tokens.token());
+    			return;
+    		}
+    		if(count == ids.length) {
+    			ids = Arrays.copyOf(ids, count * 2);
     		}
+    		ids[count++] = tokens.tokenInt();
+    	}
+    	if(count == 0) {
+    		out.println("Error: No patient id provided");
+    	} else if(count == 1) {
+    		Patient left = priQueue.removeById(ids[0]);
+    		if(left == null) {
+    			out.println("Error: no patient with the given id was found");
+    		} else {
+    			out.println("Patient \"" + left.getName()
+    					+ "\" left the waiting area");
+    		}
+    	} else {
+    		int removed = priQueue.removeAllById(Arrays.copyOf(ids, count))
+    				.size();
+    		out.println(removed + " of " + count
+    				+ " patients left the waiting area");
+    	}
+    }
+
+    /**
+     * Turns priority aging on or off
+     * @param tokens			Tokenizer positioned after the command
+     * @param priQueue			priority queue to operate on
+     */
+    private void setAging(CommandTokenizer tokens,
+    		PatientPriorityQueue priQueue) {
+    	if(tokens.next() && tokens.tokenEquals("off")) {
+    		priQueue.setAgingPolicy(0, System::currentTimeMillis);
+    		out.println("Priority aging is off");
+    	} else if(tokens.isTokenInt() && tokens.tokenInt() > 0) {
+    		priQueue.setAgingPolicy(tokens.tokenInt() * 60000L,
+    				System::currentTimeMillis);
+    		out.println("Waiting patients are promoted every "
+    				+ tokens.tokenInt() + " minutes");
+    	} else {
+    		out.println("Error: aging needs a number of minutes or off");
     	}
-    	return -1;
     }
     
+    /**
+     * Checks if a command is in a group of commands
+     * @param commands	Group, e.g. WRITE_COMMANDS
+     * @param cmd		Index of the command in COMMANDS
+     * @return			True if it is one of commands
+     */
+    private static boolean isOneOf(int[] commands, int cmd) {
+    	for(int i = 0; i < commands.length; i++) {
+    		if(commands[i] == cmd) {
+    			return true;
+    		}
+    	}
+    	return false;
+    }
+
+    /**
+     * Stops following the primary so the queue can be changed here
+     */
+    private void promote() {
+    	if(follower == null || follower.isPromoted()) {
+    		out.println("Error: this node is not following a primary");
+    		return;
+    	}
+    	long applied = follower.promote();
+    	out.println("Promoted with " + priQueue.size() + " patients "
+    			+ "waiting after applying " + applied + " changes");
+    }
+
+    /**
+     * Displays the statistics, or starts or stops dumping them to a file
+     * @param tokens			Tokenizer positioned after the command
+     * @param priQueue			Priority queue to operate on
+     */
+    private void showStats(CommandTokenizer tokens,
+    		PatientPriorityQueue priQueue) {
+    	TriageStats stats = priQueue.getStats();
+    	if(stats == null) {
+    		stats = new TriageStats();
+    		priQueue.setStats(stats);
+    	}
+    	if(!tokens.next()) {
+    		out.println(stats.report());
+    	} else if(!tokens.tokenEquals("dump")) {
+    		out.println("Error: expected stats or stats dump");
+    	} else if(!fileCommands) {
+    		out.println(MSG_NO_FILES);
+    	} else if(tokens.next() && tokens.tokenEquals("off")) {
+    		if(dumpTask != null) {
+    			dumpTask.cancel(false);
+    			dumpTask = null;
+    		}
+    		out.println("Stopped dumping statistics");
+    	} else if(!tokens.hasNext()) {
+    		out.println("Error: stats dump needs a file name and seconds");
+    	} else {
+    		String fileName = tokens.token();
+    		if(!tokens.next() || !tokens.isTokenInt()
+    				|| tokens.tokenInt() <= 0) {
+    			out.println("Error: stats dump needs a number of seconds");
+    			return;
+    		}
+    		if(dumper == null) {
+    			dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+    				Thread thread = new Thread(r, "stats-dump");
+    				thread.setDaemon(true);
+    				return thread;
+    			});
+    		}
+    		if(dumpTask != null) {
+    			dumpTask.cancel(false);
+    		}
+    		TriageStats dumped = stats;
+    		dumpTask = dumper.scheduleAtFixedRate(() -> {
+    			try {
+    				dumped.dump(fileName);
+    			} catch(IOException e) {
+    				out.println("Error: " + e.getMessage());
+    			}
+    		}, tokens.tokenInt(), tokens.tokenInt(), TimeUnit.SECONDS);
+    		out.println("Dumping statistics to " + fileName + " every "
+    				+ tokens.tokenInt() + " seconds");
+    	}
+    }
+
     /**
      * Saves current state of priority queue to file to restore later if needed
-     * @param lineScanner		Scanner with remaining chars after the command			
+     * @param tokens			Tokenizer positioned after the command
+     * @param view				Snapshot of the queue to save
+     * @throws IOException
+     */
+    private void saveCommands(CommandTokenizer tokens, 
+    		QueueSnapshot view) throws IOException {
+    	if(!tokens.next()) {
+    		out.println("No file name entered.");
+    	} else {
+    		long start = System.nanoTime();
+    		String fileName = tokens.token();
+    		view.saveFile(fileName);
+    		if(priQueue.getStats() != null) {
+    			priQueue.getStats().recordLatency(TriageStats.SAVE,
+    					System.nanoTime() - start);
+    		}
+    		out.println("Saved " + view.size()
+    				+ " patients to file " + fileName);
+    	}
+    }
+    
+    /**
+     * Saves current state of priority queue to a binary snapshot
+     * @param tokens			Tokenizer positioned after the command
      * @param priQueue			Priority queue to operate on
      * @throws IOException
      */
-    private static void saveCommands(Scanner lineScanner, 
+    private void saveSnapshot(CommandTokenizer tokens,
     		PatientPriorityQueue priQueue) throws IOException {
-    	if(!lineScanner.hasNext()) {
-    		System.out.println("No file name entered.");
+    	if(!tokens.next()) {
+    		out.println("No file name entered.");
     	} else {
-    		String fileName = lineScanner.next().trim();
-    		priQueue.saveFile(fileName);
-    		System.out.println("Saved " + priQueue.getPatientList().size()
-    				+ " patients to file " + fileName);
+    		String fileName = tokens.token();
+    		priQueue.saveBinary(fileName);
+    		out.println("Saved " + priQueue.size()
+    				+ " patients to snapshot " + fileName);
+    	}
+    }
+
+    /**
+     * Restores the priority queue from a binary snapshot
+     * @param tokens			Tokenizer positioned after the command
+     * @param priQueue			Priority queue to operate on
+     */
+    private void loadSnapshot(CommandTokenizer tokens,
+    		PatientPriorityQueue priQueue) {
+    	if(!tokens.next()) {
+    		out.println("No file name entered.");
+    	} else {
+    		String fileName = tokens.token();
+    		try {
+    			priQueue.loadBinary(fileName);
+    			out.println("Loaded " + priQueue.size()
+    					+ " patients from snapshot " + fileName);
+    		} catch (FileNotFoundException e) {
+    			out.printf("File %s was not found.%n", fileName);
+    		} catch (IOException e) {
+    			out.println("Error: " + e.getMessage());
+    		}
     	}
     }
 
+    /**
+     * Patients read from consecutive `add` lines of a file, waiting to be
+     * added to the queue together.
+     */
+    private static class AddBatch {
+        private int[] priorities = new int[64];
+        private String[] names = new String[64];
+        private int count;
+
+        /**
+         * Appends a patient to the batch
+         * @param priority    patient's priority code
+         * @param name        patient's name
+         */
+        void add(int priority, String name) {
+            if (count == priorities.length) {
+                priorities = Arrays.copyOf(priorities, count * 2);
+                names = Arrays.copyOf(names, count * 2);
+            }
+            priorities[count] = priority;
+            names[count++] = name;
+        }
+
+        /**
+         * Adds every batched patient to the queue and empties the batch
+         * @param priQueue    priority queue to add to
+         */
+        void flush(PatientPriorityQueue priQueue) {
+            if (count > 0) {
+                priQueue.addAll(priorities, names, count);
+                Arrays.fill(names, 0, count, null);
+                count = 0;
+            }
+        }
+    }
+
 }
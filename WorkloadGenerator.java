@@ -0,0 +1,150 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.Random;
+
+/**
+ * Generates a seeded stream of triage console commands that looks like a
+ * shift at an emergency room: arrivals with a realistic acuity mix, calls,
+ * re-triage, patients leaving, reception looking names up and the odd full
+ * list. The same seed always gives the same commands.
+ *
+ * Arrivals and calls are balanced so the waiting room hovers around a
+ * target size. The generator only knows how many patients it added and
+ * called, not which ones are still waiting, so some `change` and `leave`
+ * commands name patients already called, as at a real front desk.
+ * @author Ruifeng Wang
+ */
+public class WorkloadGenerator {
+    private static final String[] PRIORITY_NAMES = {"immediate",
+            "emergency", "urgent", "minimal"};
+    // percent of arrivals per priority code, index + 1 is the code
+    private static final int[] PRIORITY_PERCENT = {5, 15, 40, 40};
+    private static final String[] FIRST_NAMES = {"Maria", "John", "Wei",
+            "Aisha", "Olga", "Kenji", "Fatima", "Carlos", "Priya", "Liam",
+            "Nomvula", "Sven", "Hana", "Diego", "Amara", "Yusuf"};
+    private static final String[] LAST_NAMES = {"Gonzalez", "Smith", "Chen",
+            "Khan", "Petrova", "Sato", "Haddad", "Silva", "Patel", "Murphy",
+            "Dlamini", "Larsen", "Kim", "Herrera", "Okafor", "Demir"};
+
+    private Random random;          // drives every choice
+    private int targetWaiting;      // waiting room size to hover around
+    private double changeShare;     // share of commands that are `change`
+    private double leaveShare;      // share of commands that are `leave`
+    private double findShare;       // share of commands that are `find`
+    private double listShare;       // share of commands that are `list`
+    private int nextId;             // arrival number of the next `add`
+    private int waiting;            // adds minus calls and leaves
+
+    /**
+     * Creates a generator with a typical mix: 10% re-triage, 2% patients
+     * leaving, 2% name lookups and 0.1% full lists, the rest arrivals and
+     * calls
+     * @param seed				Seed of the random choices
+     * @param targetWaiting		Waiting room size to hover around
+     */
+    public WorkloadGenerator(long seed, int targetWaiting) {
+        this(seed, targetWaiting, 0.10, 0.02, 0.02, 0.001);
+    }
+
+    /**
+     * Creates a generator with a custom mix. Whatever share is left over
+     * goes to arrivals and calls.
+     * @param seed				Seed of the random choices
+     * @param targetWaiting		Waiting room size to hover around
+     * @param changeShare		Share of `change` commands
+     * @param leaveShare		Share of `leave` commands
+     * @param findShare			Share of `find` commands
+     * @param listShare			Share of `list` commands
+     */
+    public WorkloadGenerator(long seed, int targetWaiting, double changeShare,
+            double leaveShare, double findShare, double listShare) {
+        if (targetWaiting <= 0 || changeShare + leaveShare + findShare
+                + listShare >= 1) {
+            throw new IllegalArgumentException("Invalid workload mix");
+        }
+        this.random = new Random(seed);
+        this.targetWaiting = targetWaiting;
+        this.changeShare = changeShare;
+        this.leaveShare = leaveShare;
+        this.findShare = findShare;
+        this.listShare = listShare;
+        this.nextId = 1;
+    }
+
+    /**
+     * Generates the next command
+     * @return		Command line, as typed at the console
+     */
+    public String next() {
+        double choice = random.nextDouble();
+        if (waiting > 0) {
+            if (choice < listShare) {
+                return "list";
+            }
+            choice -= listShare;
+            if (choice < findShare) {
+                return "find " + FIRST_NAMES[random.nextInt(
+                        FIRST_NAMES.length)].substring(0, 3);
+            }
+            choice -= findShare;
+            if (choice < changeShare) {
+                return "change " + recentId() + " " + nextPriority();
+            }
+            choice -= changeShare;
+            if (choice < leaveShare) {
+                waiting--;
+                return "leave " + recentId();
+            }
+        }
+        // more arrivals below the target size, more calls above it
+        double addChance = 0.5 + 0.5 * (targetWaiting - waiting)
+                / (double) targetWaiting;
+        if (waiting == 0 || random.nextDouble()
+                < Math.min(0.95, Math.max(0.05, addChance))) {
+            waiting++;
+            nextId++;
+            return "add " + nextPriority() + " "
+                    + FIRST_NAMES[random.nextInt(FIRST_NAMES.length)] + " "
+                    + LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        }
+        waiting--;
+        return "next";
+    }
+
+    /**
+     * Finds how many patients the generated commands leave waiting, if
+     * every `leave` named a waiting patient
+     * @return		Estimated waiting room size
+     */
+    public int getEstimatedWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Draws a priority name from the acuity mix
+     * @return		Priority name, as typed at the console
+     */
+    private String nextPriority() {
+        int percent = random.nextInt(100);
+        int code = 0;
+        while (percent >= PRIORITY_PERCENT[code]) {
+            percent -= PRIORITY_PERCENT[code];
+            code++;
+        }
+        return PRIORITY_NAMES[code];
+    }
+
+    /**
+     * Draws the arrival number of a patient who probably still waits: one
+     * of the most recent arrivals, as many as are waiting
+     * @return		Arrival number
+     */
+    private int recentId() {
+        int window = Math.max(1, Math.min(waiting, nextId - 1));
+        return nextId - 1 - random.nextInt(window);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the commands that walk the whole waiting room of a
+ * PatientPriorityQueue: `list`, run through the console engine with its
+ * output discarded, and saveFile; and the cost a change pays to publish
+ * the snapshot those commands read. Run it with the GC profiler to also
+ * get the allocation rate:
+ *
+ *     java -jar target/benchmarks.jar PatientList -prof gc
+ * @author Ruifeng Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatientListBenchmark {
+    private static final int DRAWS = 1 << 16;   // pre-drawn values, cycled
+    private static final String[] NAMES = {"Maria Gonzalez", "John Smith",
+            "Wei Chen", "Aisha Khan", "Olga Petrova", "Kenji Sato"};
+
+    @Param({"10", "100", "1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"uniform", "skewed"})
+    public String mix;
+
+    private PatientPriorityQueue queue; // queue under test, size patients
+    private TriageSystem engine;        // runs `list` against queue
+    private File file;                  // written by saveFile
+    private int[] priorities;           // pre-drawn priority codes
+    private int[] ids;                  // pre-drawn arrival numbers, waiting
+    private int next;                   // index of the next pre-drawn value
+
+    /**
+     * Fills a new queue and creates the engine and file to write
+     * @throws IOException if the temporary file cannot be created
+     */
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(size);
+        boolean skewed = mix.equals("skewed");
+        queue = new PatientPriorityQueue();
+        for (int i = 0; i < size; i++) {
+            queue.addPatient(QueueBenchmark.nextPriority(random, skewed),
+                    NAMES[i % NAMES.length]);
+        }
+        engine = new TriageSystem(queue,
+                new PrintStream(OutputStream.nullOutputStream()));
+        file = File.createTempFile("triage-bench", ".txt");
+        priorities = new int[DRAWS];
+        ids = new int[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            priorities[i] = QueueBenchmark.nextPriority(random, skewed);
+            ids[i] = 1 + random.nextInt(size);
+        }
+    }
+
+    /**
+     * Removes the file written by saveFile
+     */
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Renders the patient table, as the console does for `list`
+     */
+    @Benchmark
+    public void list() {
+        engine.processLine("list");
+    }
+
+    /**
+     * Writes the waiting room as commands that can be loaded again
+     * @return		Size of the file written
+     * @throws IOException if the file cannot be written
+     */
+    @Benchmark
+    public long saveFile() throws IOException {
+        queue.saveFile(file.getPath());
+        return file.length();
+    }
+
+    /**
+     * Re-triages a random waiting patient and reads the snapshot the
+     * change published, as a dashboard polling after every command would
+     * @return		Snapshot including the change
+     */
+    @Benchmark
+    public QueueSnapshot changeThenSnapshot() {
+        int i = next++ & (DRAWS - 1);
+        queue.changePriorityById(ids[i], priorities[i]);
+        return queue.getSnapshot();
+    }
+}
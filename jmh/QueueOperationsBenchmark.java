@@ -0,0 +1,116 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the operations every TriageQueue implementation offers,
+ * on queues of 10 to 1,000,000 patients under a uniform and a skewed
+ * priority mix. Run it with the GC profiler to also get the allocation
+ * rate per operation:
+ *
+ *     mvn -B -Pjmh package
+ *     java -jar target/benchmarks.jar QueueOperations -prof gc
+ *
+ * Use -p to narrow the parameters, e.g. -p kind=heap -p size=1000000.
+ *
+ * The waiting room keeps its size throughout a measurement. An arrival is
+ * therefore always measured together with a call (the classic hold model):
+ * measuring either alone would grow or drain the queue by millions of
+ * patients per iteration. Priorities are drawn before measuring, so the
+ * random number generator is not part of the result.
+ * @author Ruifeng Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueOperationsBenchmark {
+    private static final int DRAWS = 1 << 16;   // pre-drawn values, cycled
+    private static final String[] NAMES = {"Maria Gonzalez", "John Smith",
+            "Wei Chen", "Aisha Khan", "Olga Petrova", "Kenji Sato"};
+
+    @Param({"heap", "heap-4ary", "bucket", "packed", "offheap", "pairing",
+            "concurrent"})
+    public String kind;
+
+    @Param({"10", "100", "1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"uniform", "skewed"})
+    public String mix;
+
+    private TriageQueue queue;      // queue under test, size patients
+    private int[] priorities;       // pre-drawn priority codes
+    private int[] ids;              // pre-drawn arrival numbers, all waiting
+    private int next;               // index of the next pre-drawn value
+
+    /**
+     * Fills a new queue and draws the priorities and patients to use
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random(size);
+        boolean skewed = mix.equals("skewed");
+        queue = QueueBenchmark.newQueue(kind);
+        priorities = new int[DRAWS];
+        ids = new int[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            priorities[i] = QueueBenchmark.nextPriority(random, skewed);
+            // the first size patients get arrival numbers 1 to size
+            ids[i] = 1 + random.nextInt(size);
+        }
+        for (int i = 0; i < size; i++) {
+            queue.addPatient(priorities[i & (DRAWS - 1)],
+                    NAMES[i % NAMES.length]);
+        }
+    }
+
+    /**
+     * One arrival and one call, leaving the queue at its size
+     * @return		Patient called
+     */
+    @Benchmark
+    public Patient hold() {
+        int i = next++ & (DRAWS - 1);
+        queue.addPatient(priorities[i], NAMES[i % NAMES.length]);
+        return queue.dequeue();
+    }
+
+    /**
+     * Views the patient to be called next
+     * @return		Patient at the top of the queue
+     */
+    @Benchmark
+    public Patient peek() {
+        return queue.peek();
+    }
+
+    /**
+     * Re-triages a random waiting patient
+     * @return		True if the patient was found
+     */
+    @Benchmark
+    public boolean changePri() {
+        int i = next++ & (DRAWS - 1);
+        return queue.changePriorityById(ids[i], priorities[i]);
+    }
+}
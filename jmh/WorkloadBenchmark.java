@@ -0,0 +1,98 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the whole console under shift traffic: the commands of
+ * a WorkloadGenerator replayed through TriageSystem.processLine with the
+ * output discarded, as LoadTestHarness does. The score is the average
+ * time per command; the harness adds the percentiles per command type.
+ *
+ *     java -jar target/benchmarks.jar Workload -prof gc
+ *
+ * Every measurement replays the same commands against a fresh queue that
+ * first ran the generator's opening commands, so `change` and `leave` name
+ * the same patients each time. The opening fills the waiting room and
+ * goes on as long as LoadTestHarness warms up, since the commands right
+ * after the fill cost about twice as much as later ones. All commands are
+ * generated before measuring.
+ * @author Ruifeng Wang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorkloadBenchmark {
+    private static final int OPENING = 200000;  // run before measuring
+    private static final int COMMANDS = 200000; // replayed per measurement
+
+    @Param({"1000", "10000", "100000"})
+    public int waiting;
+
+    private String[] opening;       // commands run before measuring
+    private String[] commands;      // commands measured
+    private TriageSystem engine;    // runs the commands on a fresh queue
+
+    /**
+     * Generates the commands once
+     */
+    @Setup(Level.Trial)
+    public void generate() {
+        WorkloadGenerator generator = new WorkloadGenerator(1, waiting);
+        opening = new String[OPENING];
+        for (int i = 0; i < OPENING; i++) {
+            opening[i] = generator.next();
+        }
+        commands = new String[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            commands[i] = generator.next();
+        }
+    }
+
+    /**
+     * Runs the opening commands on a fresh queue before each measurement
+     */
+    @Setup(Level.Iteration)
+    public void open() {
+        engine = new TriageSystem(new PatientPriorityQueue(),
+                new PrintStream(OutputStream.nullOutputStream()));
+        for (String line : opening) {
+            engine.processLine(line);
+        }
+    }
+
+    /**
+     * Replays the measured commands
+     * @return		Engine, still running
+     */
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public TriageSystem replay() {
+        for (int i = 0; i < COMMANDS; i++) {
+            engine.processLine(commands[i]);
+        }
+        return engine;
+    }
+}
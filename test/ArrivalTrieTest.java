@@ -0,0 +1,83 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ArrivalTrie against a TreeMap doing the same puts and deletes, with
+ * snapshots taken along the way that must keep showing what they showed.
+ * @author Ruifeng Wang
+ */
+public class ArrivalTrieTest {
+
+    /**
+     * Random puts and deletes over small and large arrival numbers, with
+     * every snapshot checked again at the end
+     */
+    @Test
+    public void matchesTreeMapAndKeepsSnapshots() {
+        ArrivalTrie trie = new ArrivalTrie();
+        TreeMap<Integer, Patient> expected = new TreeMap<Integer, Patient>();
+        List<ArrivalTrie> snapshots = new ArrayList<ArrivalTrie>();
+        List<List<Patient>> shown = new ArrayList<List<Patient>>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            // mostly a dense range, sometimes far away to grow the root
+            int key = random.nextInt(50) == 0 ? random.nextInt(1 << 30)
+                    : random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                trie.delete(key);
+                expected.remove(key);
+            } else {
+                Patient patient = new Patient(1 + random.nextInt(4), key,
+                        "Wei Chen");
+                trie.put(patient);
+                expected.put(key, patient);
+            }
+            if (i % 500 == 0) {
+                snapshots.add(trie.snapshot());
+                shown.add(new ArrayList<Patient>(expected.values()));
+            }
+        }
+        List<Patient> waiting = new ArrayList<Patient>(expected.values());
+        assertEquals(waiting, trie);
+        for (int i = 0; i < waiting.size(); i++) {
+            assertSame(waiting.get(i), trie.get(i));
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertEquals(shown.get(i), snapshots.get(i));
+            assertEquals(shown.get(i).size(), snapshots.get(i).size());
+        }
+
+        for (Integer key : new ArrayList<Integer>(expected.keySet())) {
+            trie.delete(key);
+        }
+        assertEquals(0, trie.size());
+        assertEquals(new ArrayList<Patient>(), trie);
+    }
+
+    /**
+     * Snapshots and negative arrival numbers cannot be stored
+     */
+    @Test
+    public void refusesBadChanges() {
+        ArrivalTrie trie = new ArrivalTrie();
+        ArrivalTrie frozen = trie.snapshot();
+        assertThrows(UnsupportedOperationException.class,
+                () -> frozen.put(new Patient(1, 1, "Aisha Khan")));
+        assertThrows(IllegalArgumentException.class,
+                () -> trie.put(new Patient(1, -1, "Aisha Khan")));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Entries left behind by priority changes in BucketPatientQueue.
+ * @author Ruifeng Wang
+ */
+public class BucketPatientQueueTest {
+
+    /**
+     * Changing the same few patients over and over never grows the rings
+     * past about twice the patients waiting, and keeps arrival order
+     */
+    @Test
+    public void reclaimsStaleEntries() {
+        BucketPatientQueue queue = new BucketPatientQueue();
+        PatientPriorityQueue expected = new PatientPriorityQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.addPatient(1 + i % 4, "Patient " + i);
+            expected.addPatient(1 + i % 4, "Patient " + i);
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            int id = 1 + random.nextInt(10);
+            int priority = 1 + random.nextInt(4);
+            queue.changePriorityById(id, priority);
+            expected.changePriorityById(id, priority);
+            assertTrue(queue.getEntryCount() <= 2 * queue.size() + 4,
+                    queue.getEntryCount() + " entries after " + i
+                    + " changes");
+        }
+
+        while (expected.size() > 0) {
+            assertEquals(expected.dequeue().toString(),
+                    queue.dequeue().toString());
+        }
+        assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ConcurrentPatientQueue shared by several desks and stations at once.
+ * @author Ruifeng Wang
+ */
+public class ConcurrentPatientQueueTest {
+    private static final int DESKS = 4;
+    private static final int STATIONS = 4;
+    private static final int PATIENTS_PER_DESK = 20_000;
+
+    /**
+     * A patient whose priority changed is called by arrival among the
+     * patients already at the new priority
+     */
+    @Test
+    public void keepsArrivalOrderAfterChange() {
+        ConcurrentPatientQueue queue = new ConcurrentPatientQueue();
+        queue.addPatient(3, "Maria Gonzalez");
+        queue.addPatient(2, "John Smith");
+        queue.addPatient(2, "Wei Chen");
+        queue.changePriorityById(1, 2);
+
+        assertEquals(1, queue.peek().getArrivalOrder());
+        assertEquals(1, queue.dequeue().getArrivalOrder());
+        assertEquals(2, queue.dequeue().getArrivalOrder());
+        assertEquals(3, queue.dequeue().getArrivalOrder());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Desks add and change patients while stations call them: every
+     * patient is called exactly once
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void callsEveryPatientOnce() throws InterruptedException {
+        ConcurrentPatientQueue queue = new ConcurrentPatientQueue();
+        ConcurrentHashMap<Integer, Patient> called =
+                new ConcurrentHashMap<Integer, Patient>();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger desksDone = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int d = 0; d < DESKS; d++) {
+            int seed = d;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < PATIENTS_PER_DESK; i++) {
+                    queue.addPatient(1 + random.nextInt(4), "Patient " + i);
+                    queue.changePriorityById(
+                            1 + random.nextInt(DESKS * PATIENTS_PER_DESK),
+                            1 + random.nextInt(4));
+                    if (i % 100 == 0) {
+                        try {
+                            queue.peek();
+                        } catch (NoSuchElementException e) {
+                            // the stations called everyone so far
+                        }
+                    }
+                }
+                desksDone.incrementAndGet();
+            }));
+        }
+        for (int s = 0; s < STATIONS; s++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (true) {
+                        Patient patient = queue.takeNext(10,
+                                TimeUnit.MILLISECONDS);
+                        if (patient != null) {
+                            if (called.put(patient.getArrivalOrder(),
+                                    patient) != null) {
+                                duplicates.incrementAndGet();
+                            }
+                        } else if (desksDone.get() == DESKS) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60_000);
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(DESKS * PATIENTS_PER_DESK, called.size());
+        assertEquals(0, queue.size());
+        assertTrue(queue.getPatientList().isEmpty());
+        assertNull(queue.takeNext(0, TimeUnit.MILLISECONDS));
+    }
+}
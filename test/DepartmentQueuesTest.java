@@ -0,0 +1,172 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Clinicians calling patients from their own department and stealing from
+ * the others in DepartmentQueues.
+ * @author Ruifeng Wang
+ */
+public class DepartmentQueuesTest {
+    private static final String[] DEPARTMENTS =
+            {"Adult", "Paediatric", "Fast-track"};
+    private static final int PATIENTS_PER_DESK = 20_000;
+
+    /**
+     * A clinician is given the top of their own department even when a
+     * more urgent patient waits in another one
+     */
+    @Test
+    public void prefersLocalShard() {
+        DepartmentQueues queues = new DepartmentQueues(DEPARTMENTS);
+        queues.addPatient("Paediatric", 1, "John Smith");
+        queues.addPatient("Adult", 4, "Maria Gonzalez");
+
+        assertEquals("Maria Gonzalez{pri=4, arrive=2}",
+                queues.peek("adult").toString());
+        assertEquals("Maria Gonzalez{pri=4, arrive=2}",
+                queues.dequeue("adult").toString());
+        assertEquals(1, queues.size());
+        assertEquals(1, queues.size("Paediatric"));
+    }
+
+    /**
+     * A clinician with an empty department steals the best patient waiting
+     * anywhere else, by priority and then arrival
+     */
+    @Test
+    public void stealsBestPatientElsewhere() {
+        DepartmentQueues queues = new DepartmentQueues(DEPARTMENTS);
+        queues.addPatient("Paediatric", 2, "John Smith");
+        queues.addPatient("Fast-track", 1, "Wei Chen");
+        queues.addPatient("Paediatric", 1, "Aisha Khan");
+        queues.addPatient("Fast-track", 3, "Luis Ortega");
+
+        assertEquals("Wei Chen{pri=1, arrive=2}",
+                queues.peek("Adult").toString());
+        assertEquals("Wei Chen{pri=1, arrive=2}",
+                queues.dequeue("Adult").toString());
+        assertEquals("Aisha Khan{pri=1, arrive=3}",
+                queues.dequeue("Adult").toString());
+        assertEquals("John Smith{pri=2, arrive=1}",
+                queues.dequeue("Adult").toString());
+        assertEquals("Luis Ortega{pri=3, arrive=4}",
+                queues.dequeue("Adult").toString());
+        assertEquals(0, queues.size());
+    }
+
+    /**
+     * With nobody waiting anywhere, peek finds nobody and dequeue throws
+     */
+    @Test
+    public void refusesWhenEveryDepartmentIsEmpty() {
+        DepartmentQueues queues = new DepartmentQueues(DEPARTMENTS);
+        assertNull(queues.peek("Adult"));
+        assertThrows(NoSuchElementException.class,
+                () -> queues.dequeue("Adult"));
+
+        queues.addPatient("Fast-track", 2, "John Smith");
+        queues.dequeue("Paediatric");
+        assertNull(queues.peek("Fast-track"));
+        assertThrows(NoSuchElementException.class,
+                () -> queues.dequeue("Fast-track"));
+        assertThrows(IllegalArgumentException.class,
+                () -> queues.dequeue("Cardiology"));
+    }
+
+    /**
+     * A patient's priority can be changed from any department, and a
+     * steal sees the new priority
+     */
+    @Test
+    public void changesPriorityInAnyDepartment() {
+        DepartmentQueues queues = new DepartmentQueues(DEPARTMENTS);
+        queues.addPatient("Paediatric", 2, "John Smith");
+        queues.addPatient("Fast-track", 2, "Wei Chen");
+        assertTrue(queues.changePriorityById(2, 1));
+        assertFalse(queues.changePriorityById(3, 1), "unknown patient");
+
+        assertEquals("Wei Chen{pri=1, arrive=2}",
+                queues.dequeue("Adult").toString());
+        assertFalse(queues.changePriorityById(2, 4), "changed a called "
+                + "patient");
+        assertEquals("[John Smith{pri=2, arrive=1}]",
+                queues.getPatientList("Paediatric").toString());
+    }
+
+    /**
+     * Each department has a desk adding patients and a clinician calling
+     * them, stealing whenever their own department runs dry: every
+     * patient is called exactly once
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void callsEveryPatientOnce() throws InterruptedException {
+        DepartmentQueues queues = new DepartmentQueues(DEPARTMENTS);
+        ConcurrentHashMap<Integer, Patient> called =
+                new ConcurrentHashMap<Integer, Patient>();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger desksDone = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int d = 0; d < DEPARTMENTS.length; d++) {
+            String department = DEPARTMENTS[d];
+            int seed = d;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < PATIENTS_PER_DESK; i++) {
+                    queues.addPatient(department, 1 + random.nextInt(4),
+                            "Patient " + i);
+                    if (i % 10 == 0) {
+                        queues.changePriorityById(1 + random.nextInt(
+                                DEPARTMENTS.length * PATIENTS_PER_DESK),
+                                1 + random.nextInt(4));
+                    }
+                }
+                desksDone.incrementAndGet();
+            }));
+            threads.add(new Thread(() -> {
+                while (true) {
+                    boolean finished = desksDone.get() == DEPARTMENTS.length;
+                    try {
+                        Patient patient = queues.dequeue(department);
+                        if (called.put(patient.getArrivalOrder(),
+                                patient) != null) {
+                            duplicates.incrementAndGet();
+                        }
+                    } catch (NoSuchElementException e) {
+                        if (finished) {
+                            return;
+                        }
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60_000);
+        }
+
+        assertEquals(0, duplicates.get());
+        assertEquals(DEPARTMENTS.length * PATIENTS_PER_DESK, called.size());
+        assertEquals(0, queues.size());
+    }
+}
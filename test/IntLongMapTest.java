@@ -0,0 +1,69 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * IntLongMap against java.util.HashMap, and the statistics that use it.
+ * @author Ruifeng Wang
+ */
+public class IntLongMapTest {
+
+    /**
+     * Random puts and removes over clustered and huge keys, growing and
+     * shrinking the table many times
+     */
+    @Test
+    public void matchesHashMap() {
+        IntLongMap map = new IntLongMap();
+        HashMap<Integer, Long> expected = new HashMap<Integer, Long>();
+        Random random = new Random(3);
+        for (int i = 0; i < 200_000; i++) {
+            // grow for a while, then drain, to exercise both resizes
+            boolean growing = (i / 20_000) % 2 == 0;
+            int key = random.nextBoolean() ? random.nextInt(5_000)
+                    : random.nextInt(Integer.MAX_VALUE);
+            if (random.nextInt(10) < (growing ? 7 : 2)) {
+                map.put(key, i);
+                expected.put(key, (long) i);
+            } else {
+                Long had = expected.remove(key);
+                assertEquals(had == null ? -1 : had, map.remove(key, -1));
+            }
+            if (i % 1000 == 0) {
+                for (Integer k : expected.keySet()) {
+                    assertEquals((long) expected.get(k), map.get(k, -1));
+                }
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(-1, map.get(1, -1));
+        assertThrows(IllegalArgumentException.class, () -> map.put(-1, 0));
+    }
+
+    /**
+     * A patient with a huge arrival number costs one table entry, and
+     * still gets a wait time when called
+     */
+    @Test
+    public void recordsHugeArrivalNumbers() {
+        TriageStats stats = new TriageStats();
+        Patient patient = new Patient(2, Integer.MAX_VALUE - 1, "Wei Chen");
+        stats.recordArrival(patient, 1_000);
+        stats.recordCall(patient, 2_000_001_000);
+        assertTrue(stats.report().contains("called=1 mean=2.0"),
+                stats.report());
+    }
+}
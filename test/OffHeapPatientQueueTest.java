@@ -0,0 +1,54 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Arrival number index of OffHeapPatientQueue.
+ * @author Ruifeng Wang
+ */
+public class OffHeapPatientQueueTest {
+
+    /**
+     * A long shift of arrivals and calls with only a few patients waiting
+     * keeps the record slot index sized to those patients, not to every
+     * arrival number handed out
+     */
+    @Test
+    public void keepsIndexSizedToWaitingPatients() {
+        OffHeapPatientQueue queue = new OffHeapPatientQueue();
+        PatientPriorityQueue expected = new PatientPriorityQueue();
+        Random random = new Random(11);
+        for (int i = 0; i < 200_000; i++) {
+            int priority = 1 + random.nextInt(4);
+            queue.addPatient(priority, "Patient " + i);
+            expected.addPatient(priority, "Patient " + i);
+            int id = i - random.nextInt(8);
+            priority = 1 + random.nextInt(4);
+            assertEquals(expected.changePriorityById(id, priority),
+                    queue.changePriorityById(id, priority));
+            if (queue.size() > 10) {
+                assertEquals(expected.dequeue().toString(),
+                        queue.dequeue().toString());
+            }
+        }
+        assertTrue(queue.getIndexCapacity() <= 64,
+                queue.getIndexCapacity() + " index slots for "
+                + queue.size() + " patients");
+
+        while (expected.size() > 0) {
+            assertEquals(expected.dequeue().toString(),
+                    queue.dequeue().toString());
+        }
+        assertEquals(0, queue.size());
+        assertEquals(16, queue.getIndexCapacity());
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips through PatientJournal: changes are journaled, the process
+ * "crashes" without closing the journal, and a fresh queue recovered from
+ * the directory must match the one that was journaled.
+ * @author Ruifeng Wang
+ */
+public class PatientJournalTest {
+    private static final String[] NAMES = {"Maria Gonzalez", "John Smith",
+            "Wei Chen", "Aisha Khan"};
+
+    @TempDir
+    File directory;
+
+    /**
+     * Random adds, calls and changes, committed after each one as the
+     * console does, across several compactions
+     * @throws IOException if the journal cannot be written
+     */
+    @Test
+    public void recoversAfterCompaction() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            int roll = random.nextInt(10);
+            if (roll < 5 || queue.size() == 0) {
+                queue.addPatient(1 + random.nextInt(4),
+                        NAMES[random.nextInt(NAMES.length)]);
+            } else if (roll < 8) {
+                queue.dequeue();
+            } else {
+                queue.changePriorityById(queue.getPatientList().get(
+                        random.nextInt(queue.size())).getArrivalOrder(),
+                        1 + random.nextInt(4));
+            }
+            journal.commit();
+        }
+
+        assertTrue(newestGeneration() > 0, "journal never compacted");
+        assertRecovers(queue);
+    }
+
+    /**
+     * A recovered queue keeps journaling, and compacts and recovers again
+     * @throws IOException if the journal cannot be written
+     */
+    @Test
+    public void recoversTwice() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        for (int i = 0; i < 120; i++) {
+            queue.addPatient(1 + i % 4, NAMES[i % NAMES.length]);
+            journal.commit();
+        }
+        journal.close();
+
+        PatientPriorityQueue recovered = new PatientPriorityQueue();
+        journal = newJournal();
+        journal.recover(recovered);
+        for (int i = 0; i < 100; i++) {
+            recovered.dequeue();
+            journal.commit();
+        }
+        assertTrue(newestGeneration() >= 2, "journal never compacted");
+        assertRecovers(recovered);
+    }
+
+    /**
+     * A batch larger than the compaction threshold, whose records are only
+     * logged once the whole batch is in the queue
+     * @throws IOException if the journal cannot be written
+     */
+    @Test
+    public void recoversBatchAdd() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        int[] priorities = new int[300];
+        String[] names = new String[300];
+        for (int i = 0; i < 300; i++) {
+            priorities[i] = 1 + i % 4;
+            names[i] = NAMES[i % NAMES.length];
+        }
+        queue.addAll(priorities, names, 300);
+        journal.commit();
+
+        assertTrue(newestGeneration() > 0, "journal never compacted");
+        assertRecovers(queue);
+    }
+
+    /**
+     * `load` of a file of adds through the console engine, committed once
+     * afterwards as the console does
+     * @throws IOException if the journal or file cannot be written
+     */
+    @Test
+    public void recoversConsoleLoad() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        File commands = new File(directory, "commands.txt");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            lines.append("add urgent ").append(NAMES[i % NAMES.length])
+                 .append('\n');
+            if (i % 100 == 99) {
+                lines.append("next\n");
+            }
+        }
+        Files.write(commands.toPath(),
+                lines.toString().getBytes(StandardCharsets.UTF_8));
+        TriageSystem engine = new TriageSystem(queue,
+                new PrintStream(OutputStream.nullOutputStream()));
+        engine.processLine("load -q " + commands.getPath());
+        journal.commit();
+
+        assertEquals(990, queue.size());
+        assertTrue(newestGeneration() > 0, "journal never compacted");
+        assertRecovers(queue);
+    }
+
+    /**
+     * Many patients leaving at once, which removes them all before their
+     * records are logged
+     * @throws IOException if the journal cannot be written
+     */
+    @Test
+    public void recoversBulkLeave() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = new PatientJournal(directory,
+                PatientJournal.SyncPolicy.ALWAYS, 0, 64, 50);
+        journal.recover(queue);
+        for (int i = 0; i < 45; i++) {
+            queue.addPatient(1 + i % 4, NAMES[i % NAMES.length]);
+            journal.commit();
+        }
+        int[] leaving = new int[40];
+        for (int i = 0; i < leaving.length; i++) {
+            leaving[i] = i + 1;
+        }
+        assertEquals(40, queue.removeAllById(leaving).size());
+        journal.commit();
+
+        assertTrue(newestGeneration() > 0, "journal never compacted");
+        assertRecovers(queue);
+    }
+
+    /**
+     * Patients leaving one at a time between other changes, including the
+     * latest arrival, whose number must still not be handed out again
+     * @throws IOException if the journal cannot be written
+     */
+    @Test
+    public void recoversLeave() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        Random random = new Random(5);
+        for (int i = 0; i < 300; i++) {
+            queue.addPatient(1 + random.nextInt(4),
+                    NAMES[random.nextInt(NAMES.length)]);
+            if (i % 3 == 2) {
+                queue.removeById(queue.getPatientList().get(
+                        random.nextInt(queue.size())).getArrivalOrder());
+            }
+            journal.commit();
+        }
+        queue.addPatient(2, NAMES[0]);
+        journal.commit();
+        assertEquals(301, queue.removeById(301).getArrivalOrder());
+        journal.commit();
+
+        assertRecovers(queue);
+    }
+
+    /**
+     * Merging in a queue whose latest patients were already called, which
+     * skips their arrival numbers here too
+     * @throws IOException if the journal cannot be written
+     */
+    @Test
+    public void recoversMergeNumbering() throws IOException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        for (int i = 0; i < 3; i++) {
+            queue.addPatient(1 + i, NAMES[i]);
+            journal.commit();
+        }
+        PatientPriorityQueue clinic = new PatientPriorityQueue();
+        for (int i = 0; i < 5; i++) {
+            clinic.addPatient(4 - i % 4, NAMES[i % NAMES.length]);
+        }
+        clinic.removeAllById(new int[] {4, 5});
+        assertEquals(3, queue.merge(clinic));
+        journal.commit();
+
+        assertEquals(9, queue.getNextPatientNumber());
+        assertRecovers(queue);
+    }
+
+    /**
+     * `loadbin` of a snapshot whose next arrival number is past its last
+     * waiting patient
+     * @throws IOException if the journal or snapshot cannot be written
+     */
+    @Test
+    public void recoversLoadedNumbering() throws IOException {
+        PatientPriorityQueue saved = new PatientPriorityQueue();
+        for (int i = 0; i < 10; i++) {
+            saved.addPatient(1 + i % 4, NAMES[i % NAMES.length]);
+        }
+        saved.removeById(10);
+        File snapshot = new File(directory, "saved.bin");
+        saved.saveBinary(snapshot.getPath());
+
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        PatientJournal journal = newJournal();
+        journal.recover(queue);
+        queue.addPatient(2, NAMES[0]);
+        queue.loadBinary(snapshot.getPath());
+        journal.commit();
+
+        assertEquals(11, queue.getNextPatientNumber());
+        assertRecovers(queue);
+    }
+
+    /**
+     * Creates a journal on the test directory that commits in small groups
+     * and compacts often
+     * @return		Journal, not yet recovered
+     */
+    private PatientJournal newJournal() {
+        return new PatientJournal(directory,
+                PatientJournal.SyncPolicy.ALWAYS, 0, 64, 100);
+    }
+
+    /**
+     * Recovers a fresh queue from the test directory and checks that it
+     * matches the journaled one
+     * @param expected		Queue that was journaled
+     * @throws IOException if the journal cannot be read
+     */
+    private void assertRecovers(PatientPriorityQueue expected)
+            throws IOException {
+        PatientPriorityQueue recovered = new PatientPriorityQueue();
+        new PatientJournal(directory).recover(recovered);
+        assertEquals(describe(expected), describe(recovered));
+    }
+
+    /**
+     * Lists a queue's patients in arrival order, and its next number
+     * @param queue		Queue to describe
+     * @return			Description to compare
+     */
+    private static String describe(PatientPriorityQueue queue) {
+        return queue.getArrivalList() + " next "
+                + queue.getNextPatientNumber();
+    }
+
+    /**
+     * Finds the newest snapshot generation in the test directory
+     * @return		Generation, -1 if there is none
+     */
+    private int newestGeneration() {
+        int newest = -1;
+        for (String name : directory.list()) {
+            if (name.startsWith("triage-") && name.endsWith(".snap")) {
+                newest = Math.max(newest, Integer.parseInt(
+                        name.substring(7, name.length() - 5)));
+            }
+        }
+        return newest;
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Edge cases of PatientPriorityQueue, for every supported heap arity.
+ * @author Ruifeng Wang
+ */
+public class PatientPriorityQueueTest {
+    private static final int[] ARITIES = {2, 4, 8};
+
+    @TempDir
+    File directory;
+
+    /**
+     * Merging empty queues, into empty and non-empty ones
+     */
+    @Test
+    public void mergesEmptyQueues() {
+        for (int arity : ARITIES) {
+            PatientPriorityQueue queue = new PatientPriorityQueue(arity);
+            assertEquals(0, queue.merge(new PatientPriorityQueue(arity)));
+            assertEquals(0, queue.size());
+
+            queue.addPatient(3, "Wei Chen");
+            PatientPriorityQueue other = new PatientPriorityQueue(arity);
+            other.merge(queue);
+            assertEquals(1, other.size());
+            assertEquals(0, queue.merge(new PatientPriorityQueue(arity)));
+            assertEquals("Wei Chen", other.dequeue().getName());
+        }
+    }
+
+    /**
+     * Adding an empty batch, to an empty and a non-empty queue
+     */
+    @Test
+    public void addsEmptyBatch() {
+        for (int arity : ARITIES) {
+            PatientPriorityQueue queue = new PatientPriorityQueue(arity);
+            queue.addAll(new int[0], new String[0], 0);
+            assertEquals(0, queue.size());
+            queue.addPatient(2, "Aisha Khan");
+            queue.addAll(new int[0], new String[0], 0);
+            assertEquals(1, queue.size());
+        }
+    }
+
+    /**
+     * Every change publishes a view at once, and a view keeps showing the
+     * queue as it was when later changes copy the nodes they touch
+     */
+    @Test
+    public void publishesSnapshotAfterEveryChange() {
+        PatientPriorityQueue queue = sampleQueue();
+        QueueSnapshot before = queue.getSnapshot();
+        assertEquals(queue.getArrivalList().toString(),
+                before.getPatientList().toString());
+        String shown = before.getPatientList().toString();
+
+        queue.addPatient(1, "Olga Petrova");
+        queue.changePriorityById(3, 1);
+        queue.removeById(4);
+        QueueSnapshot after = queue.getSnapshot();
+        assertEquals(shown, before.getPatientList().toString());
+        assertEquals(queue.getArrivalList().toString(),
+                after.getPatientList().toString());
+        assertEquals(queue.peek(), after.peek());
+
+        queue.clear();
+        assertEquals(0, queue.getSnapshot().size());
+        assertEquals(3, after.size());
+    }
+
+    /**
+     * Views read from another thread while the queue changes are each
+     * consistent, never go back in time, and the last one is current
+     * @throws InterruptedException if the reader is interrupted
+     */
+    @Test
+    public void readsSnapshotsWhileChanging() throws InterruptedException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<String>();
+        Thread reader = new Thread(() -> {
+            long seen = -1;
+            while (!done.get() && failure.get() == null) {
+                QueueSnapshot view = queue.getSnapshot();
+                int previous = 0;
+                int count = 0;
+                for (Patient patient : view.getPatientList()) {
+                    if (patient.getArrivalOrder() <= previous) {
+                        failure.set("arrival order broken at " + previous);
+                    }
+                    previous = patient.getArrivalOrder();
+                    count++;
+                }
+                if (count != view.size() || view.getVersion() < seen) {
+                    failure.set("torn view at version " + view.getVersion());
+                }
+                seen = view.getVersion();
+            }
+        });
+        reader.start();
+        Random random = new Random(1);
+        for (int i = 0; i < 50000; i++) {
+            synchronized (queue) {
+                if (queue.size() < 100 || random.nextBoolean()) {
+                    queue.addPatient(1 + random.nextInt(4), "Wei Chen");
+                } else {
+                    queue.dequeue();
+                }
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(queue.getArrivalList().toString(),
+                queue.getSnapshot().getPatientList().toString());
+        assertSame(queue.getSnapshot(), queue.getSnapshot());
+    }
+
+    /**
+     * A binary snapshot loads back with its arrival numbers
+     * @throws IOException if the snapshot cannot be written or read
+     */
+    @Test
+    public void loadsBinarySnapshot() throws IOException {
+        File file = new File(directory, "queue.bin");
+        PatientPriorityQueue saved = sampleQueue();
+        saved.saveBinary(file.getPath());
+        PatientPriorityQueue loaded = new PatientPriorityQueue();
+        loaded.addPatient(1, "Olga Petrova");
+        loaded.loadBinary(file.getPath());
+        assertEquals(saved.getArrivalList().toString(),
+                loaded.getArrivalList().toString());
+        assertEquals(saved.getNextPatientNumber(),
+                loaded.getNextPatientNumber());
+    }
+
+    /**
+     * Truncated and corrupt snapshots are refused and leave the queue
+     * as it was
+     * @throws IOException if the snapshot cannot be written
+     */
+    @Test
+    public void keepsQueueOnBadSnapshot() throws IOException {
+        File file = new File(directory, "queue.bin");
+        sampleQueue().saveBinary(file.getPath());
+        byte[] good = Files.readAllBytes(file.toPath());
+
+        for (int length = 0; length < good.length; length++) {
+            Files.write(file.toPath(), Arrays.copyOf(good, length));
+            assertRefused(file);
+        }
+        // header is 12 bytes, then priority, arrival number, name length
+        int[][] corruptions = {{12, 7}, {12, 0}, {16, 0}, {20, -1},
+                {20, 1 << 30}, {8, -1}};
+        for (int[] corruption : corruptions) {
+            Files.write(file.toPath(), good);
+            RandomAccessFile raw = new RandomAccessFile(file, "rw");
+            try {
+                raw.seek(corruption[0]);
+                raw.writeInt(corruption[1]);
+            } finally {
+                raw.close();
+            }
+            assertRefused(file);
+        }
+    }
+
+    /**
+     * Single leaves, and bulk leaves on both the one-by-one and the
+     * rebuild path, against a sorted model, for every arity
+     */
+    @Test
+    public void removesById() {
+        for (int arity : ARITIES) {
+            Random random = new Random(arity);
+            PatientPriorityQueue queue = new PatientPriorityQueue(arity);
+            ArrayList<Patient> model = new ArrayList<Patient>();
+            for (int i = 0; i < 2000; i++) {
+                queue.addPatient(1 + random.nextInt(4), "Patient " + i);
+            }
+            model.addAll(queue.getArrivalList());
+
+            assertNull(queue.removeById(0));
+            assertNull(queue.removeById(5000));
+            for (int i = 0; i < 300; i++) {
+                Patient gone = model.remove(random.nextInt(model.size()));
+                assertEquals(gone.toString(),
+                        String.valueOf(queue.removeById(
+                                gone.getArrivalOrder())));
+                assertNull(queue.removeById(gone.getArrivalOrder()));
+            }
+            assertLeft(queue, model, random, 5);      // one by one
+            assertLeft(queue, model, random, 1000);   // rebuilds the heap
+
+            model.sort((a, b) -> a.getPriorityCode() != b.getPriorityCode()
+                    ? a.getPriorityCode() - b.getPriorityCode()
+                    : a.getArrivalOrder() - b.getArrivalOrder());
+            assertEquals(model.size(), queue.size());
+            for (Patient expected : model) {
+                assertEquals(expected.toString(), queue.dequeue().toString());
+            }
+        }
+    }
+
+    /**
+     * Removes random patients in one call, together with an unknown and a
+     * repeated arrival number, and checks what was removed
+     * @param queue		Queue to remove from
+     * @param model		Patients waiting, updated
+     * @param random	Source of the patients to remove
+     * @param count		Number of waiting patients to remove
+     */
+    private static void assertLeft(PatientPriorityQueue queue,
+            ArrayList<Patient> model, Random random, int count) {
+        Collections.shuffle(model, random);
+        int[] ids = new int[count + 2];
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids[i] = model.get(i).getArrivalOrder();
+            expected.add(model.get(i).toString());
+        }
+        ids[count] = -7;
+        ids[count + 1] = ids[0];
+        model.subList(0, count).clear();
+
+        ArrayList<String> removed = new ArrayList<String>();
+        for (Patient patient : queue.removeAllById(ids)) {
+            removed.add(patient.toString());
+        }
+        Collections.sort(expected);
+        Collections.sort(removed);
+        assertEquals(expected, removed);
+        assertEquals(model.size(), queue.size());
+    }
+
+    /**
+     * peekTop lists the next patients in call order without changing the
+     * queue, for every arity and for k up to past the queue size
+     */
+    @Test
+    public void peeksTopPatients() {
+        for (int arity : ARITIES) {
+            Random random = new Random(arity);
+            PatientPriorityQueue queue = new PatientPriorityQueue(arity);
+            for (int i = 0; i < 500; i++) {
+                queue.addPatient(1 + random.nextInt(4), "Patient " + i);
+                if (i % 7 == 0) {
+                    queue.changePriorityById(1 + random.nextInt(i + 1),
+                            1 + random.nextInt(4));
+                }
+            }
+            String before = queue.getPatientList().toString();
+            ArrayList<Patient> callOrder = queue.peekTop(queue.size() + 10);
+            assertEquals(before, queue.getPatientList().toString());
+            assertEquals(queue.size(), callOrder.size());
+            for (int k : new int[] {-1, 0, 1, 2, 37}) {
+                assertEquals(callOrder.subList(0, Math.max(k, 0)),
+                        queue.peekTop(k));
+            }
+            for (Patient expected : callOrder) {
+                assertSame(expected, queue.dequeue());
+            }
+            assertEquals(0, queue.peekTop(3).size());
+        }
+    }
+
+    /**
+     * The `peek <k>` command renders the next patients and refuses
+     * anything but a positive count
+     */
+    @Test
+    public void peeksTopPatientsFromConsole() {
+        PatientPriorityQueue queue = sampleQueue();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TriageSystem triage = new TriageSystem(queue, new PrintStream(output,
+                true, StandardCharsets.UTF_8));
+        triage.processLine("peek 2");
+        String table = output.toString(StandardCharsets.UTF_8);
+        assertTrue(table.startsWith("# next patients to be called: 2"), table);
+        assertTrue(table.indexOf("Aisha Khan") < table.indexOf("Wei Chen"),
+                table);
+        assertFalse(table.contains("John Smith"), table);
+
+        for (String bad : new String[] {"peek 0", "peek -3", "peek two"}) {
+            output.reset();
+            triage.processLine(bad);
+            assertTrue(output.toString(StandardCharsets.UTF_8)
+                    .startsWith("Error: number of patients"), bad);
+        }
+        assertEquals(3, queue.size());
+    }
+
+    /**
+     * findByName matches a case-insensitive prefix, sorted by name then
+     * arrival, and follows adds, calls, changes and leaves
+     */
+    @Test
+    public void findsByNamePrefix() {
+        String[] names = {"Maria Gonzalez", "maria garcia", "Mario Rossi",
+                "John Smith", "Wei Chen", "Aisha Khan"};
+        String[] prefixes = {"", "m", "MARIA", "maria g", "mario", "wei chen",
+                "wei chen jr", "zz"};
+        Random random = new Random(11);
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        for (int i = 0; i < 3000; i++) {
+            int roll = random.nextInt(10);
+            if (roll < 5 || queue.size() == 0) {
+                queue.addPatient(1 + random.nextInt(4),
+                        names[random.nextInt(names.length)]);
+            } else if (roll < 7) {
+                queue.dequeue();
+            } else if (roll < 9) {
+                queue.changePriorityById(randomWaiting(queue, random),
+                        1 + random.nextInt(4));
+            } else {
+                queue.removeById(randomWaiting(queue, random));
+            }
+            if (i % 100 == 0) {
+                for (String prefix : prefixes) {
+                    assertEquals(expectedMatches(queue, prefix),
+                            queue.findByName(prefix).toString(), prefix);
+                }
+            }
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TriageSystem triage = new TriageSystem(queue, new PrintStream(output,
+                true, StandardCharsets.UTF_8));
+        triage.processLine("find zz");
+        assertEquals("No waiting patient's name starts with zz",
+                output.toString(StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * Picks the arrival number of a random waiting patient
+     * @param queue		Queue with at least one patient
+     * @param random	Source of the choice
+     * @return			Arrival number
+     */
+    private static int randomWaiting(PatientPriorityQueue queue,
+            Random random) {
+        return queue.getPatientList().get(random.nextInt(queue.size()))
+                .getArrivalOrder();
+    }
+
+    /**
+     * Finds the patients findByName should return by scanning every one
+     * @param queue		Queue to search
+     * @param prefix	Start of the name, any case
+     * @return			Matches, sorted by name then arrival, as text
+     */
+    private static String expectedMatches(PatientPriorityQueue queue,
+            String prefix) {
+        ArrayList<Patient> matches = new ArrayList<Patient>();
+        for (Patient patient : queue.getArrivalList()) {
+            if (patient.getName().toLowerCase().startsWith(
+                    prefix.toLowerCase())) {
+                matches.add(patient);
+            }
+        }
+        matches.sort((a, b) -> {
+            int byName = a.getName().toLowerCase().compareTo(
+                    b.getName().toLowerCase());
+            return byName != 0 ? byName
+                    : a.getArrivalOrder() - b.getArrivalOrder();
+        });
+        return matches.toString();
+    }
+
+    /**
+     * Aging promotes one level per period waited, only when the queue is
+     * looked at, restarts the period on a change, stops at immediate and
+     * logs every promotion as a change
+     */
+    @Test
+    public void agesWithInjectedClock() {
+        AtomicLong now = new AtomicLong();
+        ArrayList<String> changes = new ArrayList<String>();
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        queue.setAgingPolicy(1000, now::get);
+        queue.addOperationLog(new OperationLog() {
+            @Override
+            public void logAdd(Patient patient) {
+            }
+
+            @Override
+            public void logDequeue(Patient patient) {
+            }
+
+            @Override
+            public void logRemove(Patient patient) {
+            }
+
+            @Override
+            public void logChange(Patient patient) {
+                changes.add(patient.toString());
+            }
+
+            @Override
+            public void logClear() {
+            }
+        });
+        queue.addPatient(4, "Maria Gonzalez");
+        queue.addPatient(3, "John Smith");
+        queue.addPatient(4, "Wei Chen");
+        queue.addPatient(4, "Aisha Khan");
+        queue.removeById(3);
+
+        now.set(500);
+        queue.changePriorityById(4, 4);     // restarts Aisha's period
+        now.set(999);
+        assertEquals("John Smith", queue.peek().getName());
+        assertEquals(1, changes.size());
+        now.set(1000);
+        assertEquals("John Smith", queue.peek().getName());
+        assertEquals(Arrays.asList("Aisha Khan{pri=4, arrive=4}",
+                "Maria Gonzalez{pri=3, arrive=1}",
+                "John Smith{pri=2, arrive=2}"), changes);
+
+        now.set(1499);
+        assertEquals(4, queue.peekTop(4).get(2).getPriorityCode());
+        now.set(1500);
+        assertEquals("Aisha Khan{pri=3, arrive=4}",
+                queue.peekTop(4).get(2).toString());
+        now.set(10_000);
+        assertEquals("[Maria Gonzalez{pri=1, arrive=1}, "
+                + "John Smith{pri=1, arrive=2}, "
+                + "Aisha Khan{pri=1, arrive=4}]",
+                queue.peekTop(4).toString());
+        assertEquals(9, changes.size());
+
+        queue.setAgingPolicy(0, now::get);
+        queue.changePriorityById(1, 4);
+        now.set(100_000);
+        assertEquals(4, queue.peekTop(4).get(2).getPriorityCode());
+    }
+
+    /**
+     * Checks that loading a snapshot fails without touching the queue
+     * @param file		Bad snapshot
+     */
+    private static void assertRefused(File file) {
+        PatientPriorityQueue queue = sampleQueue();
+        String before = queue.getArrivalList().toString();
+        assertThrows(IOException.class,
+                () -> queue.loadBinary(file.getPath()));
+        assertEquals(before, queue.getArrivalList().toString());
+    }
+
+    /**
+     * Builds a small queue whose arrival numbers have gaps
+     * @return		Queue of three patients
+     */
+    private static PatientPriorityQueue sampleQueue() {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        queue.addPatient(3, "Wei Chen");
+        queue.addPatient(1, "Maria Gonzalez");
+        queue.addPatient(4, "John Smith");
+        queue.addPatient(2, "Aisha Khan");
+        queue.dequeue();
+        return queue;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Each overflow policy of QueueEventPublisher, with deliveries run by hand
+ * so the tests decide when a subscriber catches up.
+ * @author Ruifeng Wang
+ */
+public class QueueEventPublisherTest {
+    private ArrayDeque<Runnable> deliveries = new ArrayDeque<Runnable>();
+
+    /**
+     * DROP keeps the oldest events and discards the rest
+     */
+    @Test
+    public void dropsNewEvents() {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        QueueEventPublisher events = publisher(2,
+                QueueEventPublisher.OverflowPolicy.DROP);
+        queue.addOperationLog(events);
+        Display display = subscribe(events);
+        for (int i = 0; i < 4; i++) {
+            queue.addPatient(1 + i, "Patient " + i);
+        }
+
+        display.subscription.request(10);
+        deliver();
+        assertEquals("[ADDED Patient 0{pri=1, arrive=1}, "
+                + "ADDED Patient 1{pri=2, arrive=2}]", display.seen.toString());
+        assertEquals(2, events.getDroppedCount());
+    }
+
+    /**
+     * CONFLATE delivers the latest state of each patient: an add followed
+     * by a change is one add, an add followed by a call is nothing, and a
+     * clear discards everything before it
+     */
+    @Test
+    public void conflatesEachPatient() {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        QueueEventPublisher events = publisher(2,
+                QueueEventPublisher.OverflowPolicy.CONFLATE);
+        queue.addOperationLog(events);
+        Display display = subscribe(events);
+        queue.addPatient(3, "Maria Gonzalez");
+        queue.addPatient(1, "John Smith");
+        queue.changePriorityById(1, 2);
+        queue.addPatient(4, "Wei Chen");
+        queue.dequeue();
+        display.subscription.request(10);
+        deliver();
+        assertEquals("[ADDED Maria Gonzalez{pri=2, arrive=1}, "
+                + "ADDED Wei Chen{pri=4, arrive=3}]", display.seen.toString());
+
+        display.seen.clear();
+        display.subscription.request(10);
+        queue.changePriorityById(3, 2);
+        queue.changePriorityById(3, 1);
+        queue.removeById(1);
+        deliver();
+        assertEquals("[CHANGED Wei Chen{pri=1, arrive=3}, "
+                + "LEFT Maria Gonzalez{pri=2, arrive=1}]",
+                display.seen.toString());
+
+        display.seen.clear();
+        queue.addPatient(2, "Aisha Khan");
+        queue.changePriorityById(3, 4);
+        queue.clear();
+        queue.addPatient(1, "John Smith");
+        display.subscription.request(10);
+        deliver();
+        assertEquals("[CLEARED, ADDED John Smith{pri=1, arrive=5}]",
+                display.seen.toString());
+    }
+
+    /**
+     * BLOCK never waits while the queue is being changed, only in
+     * awaitCapacity, which leaves the queue's monitor free
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void blocksOutsideQueueMonitor() throws InterruptedException {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        QueueEventPublisher events = publisher(2,
+                QueueEventPublisher.OverflowPolicy.BLOCK);
+        queue.addOperationLog(events);
+        Display display = subscribe(events);
+        synchronized (queue) {
+            for (int i = 0; i < 3; i++) {
+                queue.addPatient(1 + i, "Patient " + i);
+            }
+        }
+        Thread desk = new Thread(() -> {
+            try {
+                events.awaitCapacity();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        desk.start();
+        desk.join(200);
+        assertTrue(desk.isAlive(), "did not wait for the display");
+        synchronized (queue) {
+            queue.addPatient(4, "Patient 3");
+        }
+
+        display.subscription.request(1);
+        deliver();
+        desk.join(10_000);
+        assertFalse(desk.isAlive(), "still waiting after the display caught "
+                + "up");
+        assertEquals(4, display.seen.size());
+        assertEquals(0, events.getDroppedCount());
+    }
+
+    /**
+     * Creates a publisher whose deliveries run when deliver() is called
+     * @param bufferSize		Events buffered per subscriber
+     * @param policy			Overflow policy
+     * @return					Publisher
+     */
+    private QueueEventPublisher publisher(int bufferSize,
+            QueueEventPublisher.OverflowPolicy policy) {
+        return new QueueEventPublisher(deliveries::add, bufferSize, 8, policy);
+    }
+
+    /**
+     * Runs the deliveries scheduled so far
+     */
+    private void deliver() {
+        while (!deliveries.isEmpty()) {
+            deliveries.poll().run();
+        }
+    }
+
+    /**
+     * Subscribes a display that requests nothing by itself
+     * @param events		Publisher to subscribe to
+     * @return				Display
+     */
+    private static Display subscribe(QueueEventPublisher events) {
+        Display display = new Display();
+        events.subscribe(display);
+        return display;
+    }
+
+    /**
+     * Subscriber that remembers every event it was sent.
+     */
+    private static class Display
+            implements Flow.Subscriber<List<QueueEvent>> {
+        private Flow.Subscription subscription;
+        private ArrayList<String> seen = new ArrayList<String>();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(List<QueueEvent> batch) {
+            for (QueueEvent event : batch) {
+                seen.add(event.toString());
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            seen.add("error " + error);
+        }
+
+        @Override
+        public void onComplete() {
+            seen.add("complete");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A ReplicationFollower on the loopback interface must end up with the
+ * same waiting room and the same next arrival number as its primary.
+ * @author Ruifeng Wang
+ */
+public class ReplicationTest {
+    private static final String[] NAMES = {"Maria Gonzalez", "John Smith",
+            "Wei Chen", "Aisha Khan"};
+
+    @TempDir
+    File directory;
+
+    /**
+     * Merges and loads that skip arrival numbers reach the follower, so it
+     * numbers the next patient as the primary would after a promotion
+     * @throws Exception if the replication or the snapshot fails
+     */
+    @Test
+    public void followsSkippedNumbers() throws Exception {
+        PatientPriorityQueue primaryQueue = new PatientPriorityQueue();
+        ReplicationPrimary primary = new ReplicationPrimary(primaryQueue, 0);
+        PatientPriorityQueue followerQueue = new PatientPriorityQueue();
+        ReplicationFollower follower = new ReplicationFollower(followerQueue,
+                "localhost", primary.getPort());
+        follower.start();
+        try {
+            waitUntil(() -> primary.getFollowerCount() == 1);
+            synchronized (primaryQueue) {
+                for (int i = 0; i < 3; i++) {
+                    primaryQueue.addPatient(1 + i, NAMES[i]);
+                }
+            }
+            PatientPriorityQueue clinic = new PatientPriorityQueue();
+            for (int i = 0; i < 5; i++) {
+                clinic.addPatient(4 - i % 4, NAMES[i % NAMES.length]);
+            }
+            clinic.removeAllById(new int[] {4, 5});
+            synchronized (primaryQueue) {
+                primaryQueue.merge(clinic);
+            }
+            assertFollows(primaryQueue, followerQueue);
+            assertEquals(9, followerQueue.getNextPatientNumber());
+
+            PatientPriorityQueue saved = new PatientPriorityQueue();
+            for (int i = 0; i < 20; i++) {
+                saved.addPatient(1 + i % 4, NAMES[i % NAMES.length]);
+            }
+            saved.removeById(20);
+            File snapshot = new File(directory, "saved.bin");
+            saved.saveBinary(snapshot.getPath());
+            synchronized (primaryQueue) {
+                primaryQueue.loadBinary(snapshot.getPath());
+            }
+            assertFollows(primaryQueue, followerQueue);
+            assertEquals(21, followerQueue.getNextPatientNumber());
+            assertNull(follower.getFailure());
+        } finally {
+            follower.promote();
+            primary.close();
+        }
+    }
+
+    /**
+     * Waits for the follower to catch up, then compares the queues
+     * @param primary		Queue on the primary
+     * @param follower		Queue on the follower
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void assertFollows(PatientPriorityQueue primary,
+            PatientPriorityQueue follower) throws InterruptedException {
+        String expected;
+        synchronized (primary) {
+            expected = describe(primary);
+        }
+        waitUntil(() -> {
+            synchronized (follower) {
+                return describe(follower).equals(expected);
+            }
+        });
+        synchronized (follower) {
+            assertEquals(expected, describe(follower));
+        }
+    }
+
+    /**
+     * Describes the waiting room and the next arrival number
+     * @param queue		Queue to describe
+     * @return			Text to compare
+     */
+    private static String describe(PatientPriorityQueue queue) {
+        return new ArrayList<Patient>(queue.getArrivalList()) + " next "
+                + queue.getNextPatientNumber();
+    }
+
+    /**
+     * Polls a condition for up to ten seconds
+     * @param condition		Condition to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void waitUntil(BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
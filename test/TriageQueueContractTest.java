@@ -0,0 +1,238 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Behaviour every TriageQueue must share, run against each implementation
+ * so that swapping one strategy for another never changes who is called.
+ * @author Ruifeng Wang
+ */
+public class TriageQueueContractTest {
+
+    /**
+     * Lists every implementation under test
+     * @return		Name and a factory of empty queues for each
+     */
+    static Stream<Arguments> queues() {
+        return Stream.of(
+                queue("PatientPriorityQueue", PatientPriorityQueue::new),
+                queue("4-ary PatientPriorityQueue",
+                        () -> new PatientPriorityQueue(4)),
+                queue("BucketPatientQueue", BucketPatientQueue::new),
+                queue("ConcurrentPatientQueue", ConcurrentPatientQueue::new),
+                queue("PackedPatientHeap", PackedPatientHeap::new),
+                queue("OffHeapPatientQueue", OffHeapPatientQueue::new),
+                queue("PairingPatientHeap", PairingPatientHeap::new));
+    }
+
+    /**
+     * An empty queue has nobody to peek at, call or change
+     * @param name			Implementation under test
+     * @param factory		Creates an empty queue
+     */
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("queues")
+    public void refusesWhenEmpty(String name,
+            Supplier<TriageQueue> factory) {
+        TriageQueue queue = factory.get();
+        assertEquals(0, queue.size());
+        assertTrue(queue.getPatientList().isEmpty());
+        assertThrows(NoSuchElementException.class, queue::peek);
+        assertThrows(NoSuchElementException.class, queue::dequeue);
+        assertFalse(queue.changePriorityById(1, 1));
+
+        queue.addPatient(2, "Maria Gonzalez");
+        queue.dequeue();
+        assertEquals(0, queue.size());
+        assertThrows(NoSuchElementException.class, queue::peek);
+        assertThrows(NoSuchElementException.class, queue::dequeue);
+        assertFalse(queue.changePriorityById(1, 1), "changed a called "
+                + "patient");
+    }
+
+    /**
+     * Patients are called by priority, then by arrival
+     * @param name			Implementation under test
+     * @param factory		Creates an empty queue
+     */
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("queues")
+    public void callsByPriorityThenArrival(String name,
+            Supplier<TriageQueue> factory) {
+        TriageQueue queue = factory.get();
+        queue.addPatient(3, "Maria Gonzalez");
+        queue.addPatient(1, "John Smith");
+        queue.addPatient(3, "Wei Chen");
+        queue.addPatient(1, "Aisha Khan");
+        queue.addPatient(2, "Luis Ortega");
+        assertEquals(5, queue.size());
+        assertEquals("[Aisha Khan{pri=1, arrive=4}, "
+                + "John Smith{pri=1, arrive=2}, "
+                + "Luis Ortega{pri=2, arrive=5}, "
+                + "Maria Gonzalez{pri=3, arrive=1}, "
+                + "Wei Chen{pri=3, arrive=3}]",
+                sorted(queue.getPatientList()).toString());
+
+        assertEquals("John Smith{pri=1, arrive=2}", queue.peek().toString());
+        assertEquals(5, queue.size(), "peek removed a patient");
+        assertEquals("John Smith{pri=1, arrive=2}",
+                queue.dequeue().toString());
+        assertEquals("Aisha Khan{pri=1, arrive=4}",
+                queue.dequeue().toString());
+        assertEquals("Luis Ortega{pri=2, arrive=5}",
+                queue.dequeue().toString());
+        assertEquals("Maria Gonzalez{pri=3, arrive=1}",
+                queue.dequeue().toString());
+        assertEquals("Wei Chen{pri=3, arrive=3}", queue.dequeue().toString());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * A changed patient keeps their arrival number, so they are called by
+     * arrival among the patients already at the new priority
+     * @param name			Implementation under test
+     * @param factory		Creates an empty queue
+     */
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("queues")
+    public void changeKeepsArrivalOrder(String name,
+            Supplier<TriageQueue> factory) {
+        TriageQueue queue = factory.get();
+        queue.addPatient(3, "Maria Gonzalez");
+        queue.addPatient(2, "John Smith");
+        queue.addPatient(2, "Wei Chen");
+        queue.addPatient(1, "Aisha Khan");
+        assertTrue(queue.changePriorityById(1, 2));
+        assertTrue(queue.changePriorityById(4, 4));
+        assertTrue(queue.changePriorityById(2, 2), "same priority");
+        assertFalse(queue.changePriorityById(5, 1), "unknown patient");
+        assertFalse(queue.changePriorityById(0, 1), "unknown patient");
+        assertEquals(4, queue.size());
+
+        assertEquals("Maria Gonzalez{pri=2, arrive=1}",
+                queue.peek().toString());
+        assertEquals("Maria Gonzalez{pri=2, arrive=1}",
+                queue.dequeue().toString());
+        assertEquals("John Smith{pri=2, arrive=2}",
+                queue.dequeue().toString());
+        assertEquals("Wei Chen{pri=2, arrive=3}", queue.dequeue().toString());
+        assertEquals("Aisha Khan{pri=4, arrive=4}",
+                queue.dequeue().toString());
+    }
+
+    /**
+     * Random adds, changes and calls agree with a sorted model of the
+     * waiting room after every step
+     * @param name			Implementation under test
+     * @param factory		Creates an empty queue
+     */
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("queues")
+    public void matchesSortedModel(String name,
+            Supplier<TriageQueue> factory) {
+        TriageQueue queue = factory.get();
+        TreeMap<Long, Patient> model = new TreeMap<Long, Patient>();
+        HashMap<Integer, Long> keyById = new HashMap<Integer, Long>();
+        Random random = new Random(5003);
+        int nextId = 1;
+        for (int step = 0; step < 20_000; step++) {
+            int action = random.nextInt(10);
+            if (action < 4) {
+                int priority = 1 + random.nextInt(4);
+                String patientName = "Patient " + nextId;
+                queue.addPatient(priority, patientName);
+                put(model, keyById, new Patient(priority, nextId++,
+                        patientName));
+            } else if (action < 7) {
+                int id = 1 + random.nextInt(nextId);
+                int priority = 1 + random.nextInt(4);
+                Long key = keyById.remove(id);
+                assertEquals(key != null,
+                        queue.changePriorityById(id, priority),
+                        "change of " + id + " at step " + step);
+                if (key != null) {
+                    Patient old = model.remove(key);
+                    put(model, keyById, new Patient(priority, id,
+                            old.getName()));
+                }
+            } else if (model.isEmpty()) {
+                assertThrows(NoSuchElementException.class, queue::dequeue);
+            } else {
+                assertEquals(model.firstEntry().getValue().toString(),
+                        queue.peek().toString(), "peek at step " + step);
+                Patient called = model.pollFirstEntry().getValue();
+                keyById.remove(called.getArrivalOrder());
+                assertEquals(called.toString(), queue.dequeue().toString(),
+                        "dequeue at step " + step);
+            }
+            assertEquals(model.size(), queue.size(), "size at step " + step);
+        }
+        assertEquals(sorted(new ArrayList<Patient>(model.values())),
+                sorted(queue.getPatientList()));
+        while (!model.isEmpty()) {
+            assertEquals(model.pollFirstEntry().getValue().toString(),
+                    queue.dequeue().toString());
+        }
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Names a queue factory for the parameterized tests
+     * @param name			Implementation name
+     * @param factory		Creates an empty queue
+     * @return				Test arguments
+     */
+    private static Arguments queue(String name,
+            Supplier<TriageQueue> factory) {
+        return Arguments.of(name, factory);
+    }
+
+    /**
+     * Adds a patient to the model, keyed by priority and then arrival
+     * @param model			Waiting patients in calling order
+     * @param keyById		Model key of each waiting patient
+     * @param patient		Patient to add
+     */
+    private static void put(TreeMap<Long, Patient> model,
+            HashMap<Integer, Long> keyById, Patient patient) {
+        long key = ((long) patient.getPriorityCode() << 32)
+                | patient.getArrivalOrder();
+        model.put(key, patient);
+        keyById.put(patient.getArrivalOrder(), key);
+    }
+
+    /**
+     * Describes patients in a fixed order, whatever order they were in
+     * @param patients		Patients to describe
+     * @return				Their descriptions, sorted
+     */
+    private static ArrayList<String> sorted(List<Patient> patients) {
+        ArrayList<String> described = new ArrayList<String>();
+        for (Patient patient : patients) {
+            described.add(patient.toString());
+        }
+        Collections.sort(described);
+        return described;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * CPSC 5003, Seattle University
+ * This is free and unencumbered software released into the public domain.
+ */
+package rwang_P2X;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Stations talking to a TriageServer over the loopback interface.
+ * @author Ruifeng Wang
+ */
+public class TriageServerTest {
+
+    /**
+     * A command that fails unexpectedly disconnects only its own station
+     * @throws Exception if the server or a station fails
+     */
+    @Test
+    public void keepsServingAfterFailedCommand() throws Exception {
+        PatientPriorityQueue queue = new PatientPriorityQueue() {
+            @Override
+            public void addPatient(int priorityCode, String patientName) {
+                if (patientName.equals("Crash Test")) {
+                    throw new IllegalStateException("broken station");
+                }
+                super.addPatient(priorityCode, patientName);
+            }
+        };
+        TriageServer server = new TriageServer(queue, null, 0);
+        ByteArrayOutputStream logged = new ByteArrayOutputStream();
+        server.setLog(new PrintStream(logged, true, "UTF-8"));
+        Thread loop = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "triage-server");
+        loop.start();
+        try (Socket good = connect(server); Socket bad = connect(server)) {
+            BufferedReader goodIn = reader(good);
+            BufferedReader badIn = reader(bad);
+            send(good, "add urgent Maria Gonzalez");
+            assertEquals("Added patient \"Maria Gonzalez\" to the priority "
+                    + "system", goodIn.readLine());
+            assertEquals(".", goodIn.readLine());
+
+            send(bad, "add urgent Crash Test");
+            assertNull(badIn.readLine(), "failed station still connected");
+
+            send(good, "add minimal John Smith");
+            assertEquals("Added patient \"John Smith\" to the priority "
+                    + "system", goodIn.readLine());
+            assertEquals(".", goodIn.readLine());
+            try (Socket later = connect(server)) {
+                BufferedReader laterIn = reader(later);
+                send(later, "quit");
+                laterIn.readLine();
+            }
+        } finally {
+            server.stop();
+            loop.join(10_000);
+        }
+        assertEquals(2, queue.size());
+        assertTrue(logged.toString("UTF-8").contains("broken station"),
+                logged.toString("UTF-8"));
+    }
+
+    /**
+     * A station that enters `watch` is sent every change other stations
+     * make
+     * @throws Exception if the server or a station fails
+     */
+    @Test
+    public void sendsChangesToDisplays() throws Exception {
+        PatientPriorityQueue queue = new PatientPriorityQueue();
+        TriageServer server = new TriageServer(queue, null, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        QueueEventPublisher events = new QueueEventPublisher(executor,
+                64, 16,
+                QueueEventPublisher.OverflowPolicy.CONFLATE);
+        queue.addOperationLog(events);
+        server.setEventPublisher(events);
+        Thread loop = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "triage-server");
+        loop.start();
+        try (Socket desk = connect(server); Socket display = connect(server)) {
+            BufferedReader deskIn = reader(desk);
+            BufferedReader displayIn = reader(display);
+            send(display, "watch");
+            assertTrue(displayIn.readLine().startsWith("Watching"));
+            assertEquals(".", displayIn.readLine());
+
+            send(desk, "add urgent Maria Gonzalez");
+            deskIn.readLine();
+            assertEquals(".", deskIn.readLine());
+            assertEquals("ADDED Maria Gonzalez{pri=3, arrive=1}",
+                    displayIn.readLine());
+            send(desk, "next");
+            deskIn.readLine();
+            assertEquals("CALLED Maria Gonzalez{pri=3, arrive=1}",
+                    displayIn.readLine());
+        } finally {
+            server.stop();
+            loop.join(10_000);
+            events.close();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Connects a station to the server
+     * @param server		Server to connect to
+     * @return				Connected socket
+     * @throws IOException if the server cannot be reached
+     */
+    private static Socket connect(TriageServer server) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                server.getPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    /**
+     * Reads a station's responses line by line
+     * @param socket		Station's connection
+     * @return				Reader of the responses
+     * @throws IOException if the connection fails
+     */
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends one command line
+     * @param socket		Station's connection
+     * @param line			Command without its newline
+     * @throws IOException if the connection fails
+     */
+    private static void send(Socket socket, String line) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+}